@@ -0,0 +1,129 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import com.cinnamonframework.annotations.UploadLimit;
+import java.util.Locale;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Decides whether a request is accepted, using only its headers, before 
+ * the request body is read.
+ * 
+ * Rejected requests are answered without reading the body, and the 
+ * connection is closed, so the body is neither buffered by the container 
+ * nor stored on disk. Whether the client sends the body at all depends on 
+ * the container: some send "100 Continue" only when the application starts
+ * reading the body, so clients that wait for it never send a rejected 
+ * body; others, like Tomcat by default, send it before the servlet runs, 
+ * and the body is sent and discarded.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class AdmissionManager {
+    
+    /**
+     * Checks a request against the limits declared on its action.
+     * @param limit the action limits, or null if it does not have any.
+     * @throws RequestRejectedException if the request is not accepted.
+     */
+    static void admit(UploadLimit limit, HttpServletRequest httpServletRequest) throws RequestRejectedException {
+        
+        if (limit == null) {
+            return;
+        }
+        
+        String expect = httpServletRequest.getHeader("Expect");
+        if (expect != null && !expect.equalsIgnoreCase("100-continue")) {
+            throw new RequestRejectedException(Result.StatusCode.ExpectationFailed, 
+                "Expectation \"" + expect + "\" is not supported.");
+        }
+        
+        if (!hasBody(httpServletRequest)) {
+            return;
+        }
+        
+        long length = httpServletRequest.getContentLengthLong();
+        if (limit.maxSize() >= 0) {
+            if (length < 0) {
+                throw new RequestRejectedException(Result.StatusCode.LengthRequired, 
+                    "Content-Length is required.");
+            }
+            if (length > limit.maxSize()) {
+                throw new RequestRejectedException(Result.StatusCode.RequestEntityTooLarge, 
+                    "Request size " + length + " exceeds the limit of " + limit.maxSize() + " bytes.");
+            }
+        }
+        
+        if (limit.contentTypes().length > 0 
+            && !matches(httpServletRequest.getContentType(), limit.contentTypes())) {
+            throw new RequestRejectedException(Result.StatusCode.UnsupportedMediaType, 
+                "Content type \"" + httpServletRequest.getContentType() + "\" is not accepted.");
+        }
+        
+    }
+    
+    
+    /**
+     * A request has a body if it declares a length greater than zero or it's
+     * sent in chunks.
+     */
+    private static boolean hasBody(HttpServletRequest httpServletRequest) {
+        return httpServletRequest.getContentLengthLong() > 0 
+            || httpServletRequest.getHeader("Transfer-Encoding") != null;
+    }
+    
+    
+    /**
+     * Compares a content type, ignoring its parameters, with a list of 
+     * types that may end with a wildcard, like "image/*".
+     */
+    private static boolean matches(String contentType, String[] accepted) {
+        
+        if (contentType == null) {
+            return false;
+        }
+        
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType)
+            .trim().toLowerCase(Locale.ENGLISH);
+        
+        for (String s : accepted) {
+            String a = s.trim().toLowerCase(Locale.ENGLISH);
+            if (a.equals(type) || a.equals("*/*")
+                || (a.endsWith("/*") && type.startsWith(a.substring(0, a.length() - 1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+}
@@ -0,0 +1,233 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A read plan for the public properties of a class. It's built only once
+ * per class by looking up its public getters and fields; after that, 
+ * reading a property is a direct method handle call with no reflection
+ * involved.
+ * 
+ * Getters follow the JavaBeans convention: getName() or isName() for
+ * booleans. Methods declared by Object, like getClass(), are ignored.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class BeanPlan {
+    
+    private static final MethodType GetterType = MethodType.methodType(Object.class, Object.class);
+    
+    private static final ClassValue<BeanPlan> plans = new ClassValue<BeanPlan>() {
+        @Override
+        protected BeanPlan computeValue(Class<?> type) {
+            return new BeanPlan(type);
+        }
+    };
+    
+    private final Property[] properties;
+    private final Map<String, Property> byName;
+    
+    
+    /**
+     * Returns the plan for the given class, building it on first use.
+     * @param type the class to inspect.
+     * @return the plan for the given class.
+     */
+    static BeanPlan of(Class<?> type) {
+        return plans.get(type);
+    }
+    
+    
+    private BeanPlan(Class<?> type) {
+        
+        // Sort properties by name so the order does not depend on the order
+        // the JVM gives us the methods in.
+        Map<String, Property> found = new TreeMap<>();
+        
+        for (Field field : type.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                MethodHandle handle = unreflectGetter(field);
+                if (handle != null) {
+                    found.put(field.getName(), new Property(field.getName(), handle));
+                }
+            }
+        }
+        
+        // Getters take precedence over fields with the same name.
+        for (Method method : type.getMethods()) {
+            String name = propertyName(method);
+            if (name != null) {
+                MethodHandle handle = unreflect(method);
+                if (handle != null) {
+                    found.put(name, new Property(name, handle));
+                }
+            }
+        }
+        
+        properties = found.values().toArray(new Property[found.size()]);
+        byName = new HashMap<>(found);
+    }
+    
+    
+    /**
+     * @return the readable properties of this class, sorted by name.
+     */
+    Property[] getProperties() {
+        return properties;
+    }
+    
+    
+    /**
+     * @param name a property name.
+     * @return the property with the given name or null if it does not exist.
+     */
+    Property getProperty(String name) {
+        return byName.get(name);
+    }
+    
+    
+    /**
+     * Returns the property name for a getter, that is, "name" for "getName"
+     * or "isName".
+     * @param method the method to check.
+     * @return the property name or null if the method is not a getter.
+     */
+    private static String propertyName(Method method) {
+        
+        if (Modifier.isStatic(method.getModifiers())
+            || method.getParameterTypes().length != 0
+            || method.getReturnType() == void.class
+            || method.getDeclaringClass() == Object.class) {
+            return null;
+        }
+        
+        String name = method.getName();
+        int prefix;
+        if (name.startsWith("get") && name.length() > 3) {
+            prefix = 3;
+        }
+        else if (name.startsWith("is") && name.length() > 2
+            && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+            prefix = 2;
+        }
+        else {
+            return null;
+        }
+        
+        return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+    }
+    
+    
+    /**
+     * Returns a handle of type (Object)Object for the given getter, or null
+     * if the getter cannot be accessed. A public method declared in a non 
+     * public class needs to be made accessible first.
+     */
+    private static MethodHandle unreflect(Method method) {
+        try {
+            if (!Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                method.setAccessible(true);
+            }
+            return MethodHandles.lookup().unreflect(method).asType(GetterType);
+        }
+        catch (IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Returns a handle of type (Object)Object for the given field, or null
+     * if the field cannot be accessed.
+     */
+    private static MethodHandle unreflectGetter(Field field) {
+        try {
+            if (!Modifier.isPublic(field.getDeclaringClass().getModifiers())) {
+                field.setAccessible(true);
+            }
+            return MethodHandles.lookup().unreflectGetter(field).asType(GetterType);
+        }
+        catch (IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+    
+    
+    /**
+     * A readable property.
+     */
+    static final class Property {
+        
+        private final String name;
+        private final MethodHandle getter;
+        
+        private Property(String name, MethodHandle getter) {
+            this.name = name;
+            this.getter = getter;
+        }
+        
+        String getName() {
+            return name;
+        }
+        
+        /**
+         * Reads this property from the given instance.
+         * @param bean an instance of the class this property belongs to.
+         * @return the property value.
+         * @throws ServerException if the getter throws an exception.
+         */
+        Object get(Object bean) throws ServerException {
+            try {
+                return (Object) getter.invokeExact(bean);
+            }
+            catch (Error e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                throw new ServerException(
+                    "Cannot read property \"" + name + "\" from \"" 
+                  + bean.getClass().getName() + "\": " + e.getMessage(), e);
+            }
+        }
+        
+    }
+    
+}
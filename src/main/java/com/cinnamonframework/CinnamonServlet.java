@@ -31,8 +31,13 @@
 package com.cinnamonframework;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
@@ -53,6 +58,38 @@ public class CinnamonServlet extends HttpServlet {
     private String controllersPackage;
     private static final String initParameterUseSlugs = "com.cinammonframework.use-slugs";
     private boolean useSlugs;
+    private static final String initParameterDevelopment = "com.cinammonframework.development";
+    private TemplateManager templateManager;
+    private final EventStreamManager eventStreamManager = new EventStreamManager();
+    private static final String initParameterTrustedProxies = "com.cinammonframework.trusted-proxies";
+    private RateLimitManager rateLimitManager;
+    private static final String initParameterUploadsDir = "com.cinammonframework.uploads-dir";
+    private static final String initParameterUploadsMaxFileSize = "com.cinammonframework.uploads-max-file-size";
+    private static final String initParameterUploadsAllowedTypes = "com.cinammonframework.uploads-allowed-types";
+    private static final String initParameterUploadsDeduplicate = "com.cinammonframework.uploads-deduplicate";
+    private static final String initParameterUploadsImageSizes = "com.cinammonframework.uploads-image-sizes";
+    private volatile UploadManager uploadManager;
+    private static final String initParameterThumbnails = "com.cinammonframework.thumbnails";
+    private static final String initParameterThumbnailsDir = "com.cinammonframework.thumbnails-dir";
+    private static final String initParameterThumbnailsCacheSize = "com.cinammonframework.thumbnails-cache-size";
+    private static final String initParameterThumbnailsSizes = "com.cinammonframework.thumbnails-sizes";
+    private String thumbnailsPath;
+    private ThumbnailManager thumbnailManager;
+    private static final String initParameterResumableUploads = "com.cinammonframework.resumable-uploads";
+    private static final String initParameterResumableUploadsMaxFileSize = "com.cinammonframework.resumable-uploads-max-file-size";
+    private static final String initParameterResumableUploadsExpiration = "com.cinammonframework.resumable-uploads-expiration";
+    private String resumableUploadsPath;
+    private ResumableUploadManager resumableUploadManager;
+    private static final String initParameterMessagesBundle = "com.cinammonframework.messages-bundle";
+    private MessageManager messageManager;
+    private static final String initParameterRecycleRequests = "com.cinammonframework.recycle-requests";
+    private RequestContextPool requestContextPool;
+    private static final String initParameterInterceptors = "com.cinammonframework.interceptors";
+    private RouteTable routeTable;
+    private static final String initParameterServerTimingSampleRate = "com.cinammonframework.server-timing-sample-rate";
+    private static final String initParameterRequestEvents = "com.cinammonframework.request-events";
+    private double serverTimingSampleRate;
+    private boolean requestEvents;
     
 
     /**
@@ -77,6 +114,265 @@ public class CinnamonServlet extends HttpServlet {
             useSlugs = Boolean.parseBoolean(getServletConfig().getInitParameter(initParameterUseSlugs));
         }
         
+        // Templates are reloaded on change only in development mode.
+        templateManager = new TemplateManager(getServletContext(),
+                Boolean.parseBoolean(getParameter(initParameterDevelopment)));
+        
+        // The upload manager is created on the first upload, so 
+        // applications that do not receive files do not need an uploads
+        // directory.
+        thumbnailManager = createThumbnailManager();
+        resumableUploadManager = createResumableUploadManager();
+        
+        messageManager = new MessageManager(getParameter(initParameterMessagesBundle),
+                Thread.currentThread().getContextClassLoader());
+        
+        // Contexts that are never given back are reported only in 
+        // development mode.
+        boolean recycleRequests = Boolean.parseBoolean(getParameter(initParameterRecycleRequests));
+        requestContextPool = new RequestContextPool(messageManager, recycleRequests, 
+                recycleRequests && Boolean.parseBoolean(getParameter(initParameterDevelopment)));
+        
+        rateLimitManager = new RateLimitManager(getParameter(initParameterTrustedProxies));
+        routeTable = new RouteTable(createInterceptors(), rateLimitManager);
+        
+        String sampleRate = getParameter(initParameterServerTimingSampleRate);
+        try {
+            serverTimingSampleRate = sampleRate == null || sampleRate.isEmpty() ? 0 : Double.parseDouble(sampleRate);
+        }
+        catch (NumberFormatException e) {
+            throw new ServletException("CinnamonServlet: Invalid server timing sample rate \"" + sampleRate + "\".", e);
+        }
+        requestEvents = Boolean.parseBoolean(getParameter(initParameterRequestEvents));
+        if (requestEvents && !RequestEvents.isAvailable()) {
+            Logger.getLogger(logger).log(Level.WARNING, 
+                "CinnamonServlet: Request events are not available, this Java runtime has no Flight Recorder.");
+            requestEvents = false;
+        }
+        
+    }
+    
+    
+    /**
+     * Returns the upload manager, creating it on first use.
+     * @return the upload manager.
+     * @throws ServletException if the upload manager cannot be created.
+     */
+    private UploadManager getUploadManager() throws ServletException {
+        UploadManager manager = uploadManager;
+        if (manager == null) {
+            synchronized (this) {
+                manager = uploadManager;
+                if (manager == null) {
+                    manager = createUploadManager();
+                    uploadManager = manager;
+                }
+            }
+        }
+        return manager;
+    }
+    
+    
+    /**
+     * Creates the upload manager using the uploads parameters. A relative
+     * uploads directory is resolved against the application directory.
+     * @return a configured upload manager.
+     * @throws ServletException if a parameter has an invalid value or the
+     *         uploads directory cannot be resolved.
+     */
+    private UploadManager createUploadManager() throws ServletException {
+        
+        String dir = getParameter(initParameterUploadsDir);
+        String maxFileSize = getParameter(initParameterUploadsMaxFileSize);
+        String allowedTypes = getParameter(initParameterUploadsAllowedTypes);
+        String imageSizes = getParameter(initParameterUploadsImageSizes);
+        
+        java.nio.file.Path directory = resolveDirectory(dir != null ? dir : "uploads");
+        
+        try {
+            // An empty list of sizes disables image derivatives.
+            DerivativeManager derivativeManager = new DerivativeManager(
+                imageSizes != null ? imageSizes : DerivativeManager.DefaultSizes);
+            if (derivativeManager.getSizes().isEmpty()) {
+                derivativeManager.shutdown();
+                derivativeManager = null;
+            }
+            
+            return new UploadManager(directory, 
+                maxFileSize != null ? Long.parseLong(maxFileSize.trim()) : UploadManager.DefaultMaxFileSize,
+                allowedTypes != null ? allowedTypes : UploadManager.DefaultAllowedTypes,
+                Boolean.parseBoolean(getParameter(initParameterUploadsDeduplicate)),
+                derivativeManager);
+        }
+        catch (NumberFormatException e) {
+            throw new ServletException("CinnamonServlet: Invalid value for " 
+                + initParameterUploadsMaxFileSize + " or " 
+                + initParameterUploadsImageSizes + ": " + e.getMessage(), e);
+        }
+    }
+    
+    
+    /**
+     * Creates the thumbnail manager if a thumbnails path is set. The cache
+     * directory is resolved like the uploads directory. Without a list of 
+     * thumbnail sizes, the uploads image sizes are used.
+     * @return a configured thumbnail manager or null if disabled.
+     * @throws ServletException if a parameter has an invalid value or the
+     *         cache directory cannot be read.
+     */
+    private ThumbnailManager createThumbnailManager() throws ServletException {
+        
+        String path = getParameter(initParameterThumbnails);
+        String dir = getParameter(initParameterThumbnailsDir);
+        String cacheSize = getParameter(initParameterThumbnailsCacheSize);
+        String sizes = getParameter(initParameterThumbnailsSizes);
+        if (sizes == null || sizes.trim().isEmpty()) {
+            sizes = getParameter(initParameterUploadsImageSizes);
+        }
+        
+        thumbnailsPath = path != null ? path.trim() : "";
+        if (thumbnailsPath.isEmpty()) {
+            return null;
+        }
+        
+        try {
+            return new ThumbnailManager(getUploadManager().getDirectory(), 
+                resolveDirectory(dir != null ? dir : "thumbnails"),
+                DerivativeManager.parseSizes(sizes != null ? sizes : DerivativeManager.DefaultSizes),
+                cacheSize != null ? Long.parseLong(cacheSize.trim()) : ThumbnailManager.DefaultMaxCacheSize);
+        }
+        catch (NumberFormatException e) {
+            throw new ServletException("CinnamonServlet: Invalid value for " 
+                + initParameterThumbnailsCacheSize + " or " 
+                + initParameterThumbnailsSizes + ": " + e.getMessage(), e);
+        }
+        catch (IOException e) {
+            throw new ServletException("CinnamonServlet: Cannot read the thumbnails directory: " 
+                + e.getMessage(), e);
+        }
+    }
+    
+    
+    /**
+     * Creates the resumable upload manager if a resumable uploads path is 
+     * set. Files are kept in the uploads directory and follow the uploads 
+     * allowed types.
+     * @return a configured resumable upload manager or null if disabled.
+     * @throws ServletException if a parameter has an invalid value or the
+     *         working directory cannot be created.
+     */
+    private ResumableUploadManager createResumableUploadManager() throws ServletException {
+        
+        String path = getParameter(initParameterResumableUploads);
+        String maxFileSize = getParameter(initParameterResumableUploadsMaxFileSize);
+        String expiration = getParameter(initParameterResumableUploadsExpiration);
+        
+        resumableUploadsPath = path != null ? path.trim() : "";
+        if (resumableUploadsPath.isEmpty()) {
+            return null;
+        }
+        
+        try {
+            return new ResumableUploadManager(getUploadManager(), 
+                maxFileSize != null ? Long.parseLong(maxFileSize.trim()) : ResumableUploadManager.DefaultMaxFileSize,
+                expiration != null ? Long.parseLong(expiration.trim()) : ResumableUploadManager.DefaultExpiration);
+        }
+        catch (NumberFormatException e) {
+            throw new ServletException("CinnamonServlet: Invalid value for " 
+                + initParameterResumableUploadsMaxFileSize + " or " 
+                + initParameterResumableUploadsExpiration + ": " + e.getMessage(), e);
+        }
+        catch (IOException e) {
+            throw new ServletException("CinnamonServlet: Cannot create the resumable uploads directory: " 
+                + e.getMessage(), e);
+        }
+    }
+    
+    
+    /**
+     * Creates the global interceptors, given as a comma separated list of 
+     * class names.
+     * @return the interceptors, in the given order.
+     * @throws ServletException if an interceptor cannot be created.
+     */
+    private List<Interceptor> createInterceptors() throws ServletException {
+        
+        List<Interceptor> interceptors = new ArrayList<>();
+        String classNames = getParameter(initParameterInterceptors);
+        if (classNames == null) {
+            return interceptors;
+        }
+        
+        for (String className : classNames.split(",")) {
+            className = className.trim();
+            if (className.isEmpty()) {
+                continue;
+            }
+            try {
+                Class<?> type = Class.forName(className, true, Thread.currentThread().getContextClassLoader());
+                interceptors.add((Interceptor) type.newInstance());
+            }
+            catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e) {
+                throw new ServletException("CinnamonServlet: Cannot create the interceptor \"" 
+                    + className + "\": " + e.getMessage(), e);
+            }
+        }
+        return interceptors;
+    }
+    
+    
+    /**
+     * Resolves a relative directory against the application directory.
+     * @param dir a directory name.
+     * @return an absolute path.
+     * @throws ServletException if the directory is relative and the 
+     *         application is not expanded.
+     */
+    private java.nio.file.Path resolveDirectory(String dir) throws ServletException {
+        
+        java.nio.file.Path directory = Paths.get(dir);
+        if (!directory.isAbsolute()) {
+            String contextDir = getServletContext().getRealPath("/");
+            if (contextDir == null) {
+                throw new ServletException("CinnamonServlet: Cannot resolve the directory \"" 
+                    + directory + "\", the application is not expanded. Use an absolute path.");
+            }
+            directory = Paths.get(contextDir).resolve(directory);
+        }
+        return directory;
+    }
+    
+    
+    /**
+     * Closes all open event streams, stops the background work of uploads
+     * and lets go of the objects reused by container threads.
+     */
+    @Override
+    public void destroy() {
+        eventStreamManager.shutdown();
+        requestContextPool.shutdown();
+        JsonSerializer.shutdown();
+        TemplateOutput.shutdown();
+        synchronized (this) {
+            if (uploadManager != null) {
+                uploadManager.shutdown();
+            }
+        }
+        if (resumableUploadManager != null) {
+            resumableUploadManager.shutdown();
+        }
+    }
+    
+    
+    /**
+     * Returns an initialization parameter, looking first in the application
+     * web.xml file and then in the servlet configuration.
+     * @param name the parameter name.
+     * @return the parameter value or null if it's not defined.
+     */
+    private String getParameter(String name) {
+        String value = getServletContext().getInitParameter(name);
+        return value != null ? value : getServletConfig().getInitParameter(name);
     }
     
     
@@ -94,28 +390,51 @@ public class CinnamonServlet extends HttpServlet {
             HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws ServletException, IOException {
 
+        RequestContext context = requestContextPool.acquire();
+        RequestTimer timer = RequestTimer.start(isSampled(), requestEvents);
+        UrlAnalyzer urlAnalyzer = context.urlAnalyzer;
+        
         try {
             long startTime = System.nanoTime();
             
-            UrlAnalyzer urlAnalyzer = new UrlAnalyzer(httpServletRequest, useSlugs);
-            Controller controller = ControllerManager.instantiateController(
+            urlAnalyzer.analyze(httpServletRequest, useSlugs);
+            timer.lap(RequestTimer.Phase.Url);
+            
+            Controller controller = createBuiltInController(urlAnalyzer);
+            if (controller == null) {
+                controller = ControllerManager.instantiateController(
                     controllersPackage + "." + urlAnalyzer.getClassName());
+            }
             
             if (controller instanceof HttpServletRequestAware)
                 ((HttpServletRequestAware) controller).setHttpServletRequest(httpServletRequest);
             if (controller instanceof HttpServletResponseAware)
                 ((HttpServletResponseAware) controller).setHttpServletResponse(httpServletResponse);
+            timer.lap(RequestTimer.Phase.Controller);
+            
+            // Refuse requests that exceed the action limits before their
+            // body is read.
+            RouteTable.Route route = routeTable.get(controller, urlAnalyzer.getMethodName());
+            ControllerManager.admit(route, controller, httpServletRequest, rateLimitManager);
+            timer.lap(RequestTimer.Phase.Admission);
             
-            controller.setRequest(
-                RequestManager.createRequest(httpServletRequest, requestMethod));
-            controller.setMessages(new Messages()); // TODO: add bundle?
+            Messages messages = context.messages;
+            Request request = RequestManager.createRequest(context.request, httpServletRequest, 
+                requestMethod, getUploadManager(httpServletRequest), resumableUploadManager, messages);
+            messages.setRequest(request);
+            controller.setRequest(request);
+            controller.setMessages(messages);
             controller.setSession(
-                SessionManager.createSession(httpServletRequest));
-            Result result = ControllerManager.invoke(controller, urlAnalyzer, httpServletRequest);
+                SessionManager.createSession(context.session, httpServletRequest));
+            timer.lap(RequestTimer.Phase.Request);
+            
+            Result result = ControllerManager.invoke(route, controller, urlAnalyzer, httpServletRequest, timer);
+            timer.lap(RequestTimer.Phase.Interceptors);
             
             if (result != null) {
                 OutputManager.processOutput(result, (Controller) controller, 
-                        httpServletRequest, httpServletResponse);
+                        templateManager, eventStreamManager, httpServletRequest, httpServletResponse, timer);
+                timer.lap(RequestTimer.Phase.Render);
             }
             else {
                 throw new ServerException("CinnamonServlet: Response from " +
@@ -126,16 +445,20 @@ public class CinnamonServlet extends HttpServlet {
             long endTime = System.nanoTime();
             
             // TODO: delete the performance code 
-            Object[] params = {
-                new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date()),
-                urlAnalyzer.getClassName() + "." + urlAnalyzer.getMethodName(),
-                "" + ((endTime - startTime) / 1_000_000),
-                "" + Runtime.getRuntime().totalMemory(),
-                "" + Runtime.getRuntime().freeMemory()
-            };
-            Logger.getLogger(logger).log(Level.INFO,
-                    "{0}\tCtrl: {1}\tExecTime:{2}ms\tTotalMem:{3}\tFreeMem:{4}",
-                    params);
+            // It allocates more per request than the recycled objects save,
+            // so it only runs when the INFO level is on for this logger.
+            if (Logger.getLogger(logger).isLoggable(Level.INFO)) {
+                Object[] params = {
+                    new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(new Date()),
+                    urlAnalyzer.getClassName() + "." + urlAnalyzer.getMethodName(),
+                    "" + ((endTime - startTime) / 1_000_000),
+                    "" + Runtime.getRuntime().totalMemory(),
+                    "" + Runtime.getRuntime().freeMemory()
+                };
+                Logger.getLogger(logger).log(Level.INFO,
+                        "{0}\tCtrl: {1}\tExecTime:{2}ms\tTotalMem:{3}\tFreeMem:{4}",
+                        params);
+            }
         }
         
         catch (UrlNotFoundException e) {
@@ -144,16 +467,94 @@ public class CinnamonServlet extends HttpServlet {
             Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
             httpServletResponse.sendError(HttpServletResponse.SC_NOT_FOUND, "Please check the server log for details.");
         }
+        catch (RequestRejectedException e) {
+            // Send the status code given by the rejection. If there's a 
+            // body, it was not read, so the connection is closed instead of
+            // reading and discarding it.
+            // Rejections can be very frequent during an attack, so they are
+            // not logged by default.
+            Logger.getLogger(logger).log(Level.FINE, e.getMessage());
+            for (Map.Entry<String, String> header : e.getHeaders().entrySet()) {
+                httpServletResponse.setHeader(header.getKey(), header.getValue());
+            }
+            if (httpServletRequest.getContentLengthLong() > 0 
+                || httpServletRequest.getHeader("Transfer-Encoding") != null) {
+                httpServletResponse.setHeader("Connection", "close");
+            }
+            httpServletResponse.sendError(e.getStatusCode(), e.getMessage());
+        }
         catch (ServerException e) {
             // Send a 500 Internal Server Error
             Logger.getLogger(logger).log(Level.SEVERE, e.getMessage(), e);
             httpServletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Please check the server log for details.");
         }
-        
+        finally {
+            timer.finish(urlAnalyzer);
+            
+            // Asynchronous requests keep using their objects after this
+            // thread returns.
+            if (httpServletRequest.isAsyncStarted()) {
+                requestContextPool.discard(context);
+            }
+            else {
+                requestContextPool.release(context);
+            }
+        }
 
     }
 
     
+    /**
+     * @return the upload manager if the request may contain uploaded 
+     *         files, null otherwise.
+     * @throws ServerException if the upload manager cannot be created.
+     */
+    private UploadManager getUploadManager(HttpServletRequest httpServletRequest) throws ServerException {
+        if (!UploadManager.isMultipart(httpServletRequest)) {
+            return null;
+        }
+        try {
+            return getUploadManager();
+        }
+        catch (ServletException e) {
+            throw new ServerException(e.getMessage(), e);
+        }
+    }
+    
+    
+    /**
+     * @return true if the current request should get a Server-Timing 
+     *         header.
+     */
+    private boolean isSampled() {
+        return serverTimingSampleRate > 0 
+            && (serverTimingSampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < serverTimingSampleRate);
+    }
+    
+    
+    /**
+     * Returns a built-in controller (thumbnails or resumable uploads) if 
+     * the request goes to one of them. Their paths take precedence over 
+     * application controllers with the same name.
+     * @return a built-in controller or null if the request goes to an 
+     *         application controller.
+     */
+    private Controller createBuiltInController(UrlAnalyzer urlAnalyzer) {
+        // Compare slugs and class names alike: "resumable-uploads" 
+        // matches "ResumableUploads".
+        String className = urlAnalyzer.getClassName().replace("-", "");
+        if (thumbnailManager != null 
+            && className.equalsIgnoreCase(thumbnailsPath.replace("-", ""))) {
+            return new ThumbnailController(thumbnailManager);
+        }
+        if (resumableUploadManager != null 
+            && className.equalsIgnoreCase(resumableUploadsPath.replace("-", ""))) {
+            return new ResumableUploadController(resumableUploadManager);
+        }
+        return null;
+    }
+    
+    
     /**
      * Handles the HTTP <code>GET</code> method.
      *
@@ -194,222 +595,5 @@ public class CinnamonServlet extends HttpServlet {
         return "Cinnamon Servlet Controller, fast web development using Java.";
     }
     
-    
-    /**
-     * Processes all uploaded files. This method looks for uploaded files in 
-     * the request, populates the related classes and saves the file into the
-     * defined uploads directory. 
-     * 
-     * If the uploaded file is a supported image type, it also resizes it to
-     * get three common file sizes.
-     * 
-     * @param httpServletRequest
-     * @param bundle
-     * @return an empty array if no files were found
-     * @throws ServerException
-     *//*
-    public UploadedFile[] processUploadedFiles(HttpServletRequest httpServletRequest, ResourceBundle bundle)
-            throws ServerException {
-
-        List<UploadedFile> files = new ArrayList();
-
-        try {
-            for (Part part : httpServletRequest.getParts()) {
-                
-                if (part.getContentType() != null && !isAllowedContentType(part.getContentType())) {
-                    throw new ServerException(bundle.getString("exception.upload.fileTypeNotAllowed") + part.getSubmittedFileName());
-                }
-                
-                // The developer may check if there are files uploaded; if 
-                // there are no, then he can send a message to the user telling
-                // him that something went wrong and that he should check for
-                // conditions like file size and file type.
-                if (part.getContentType() != null && part.getSize() > 0) {
-                
-                    UploadedFile file = new UploadedFile();
-                    file.setName(part.getName());
-                    file.setSubmittedFileName(part.getSubmittedFileName());
-                    file.setSize(part.getSize());
-                    file.setContentType(part.getContentType());
-                    
-                    String tempName = assignNameForUploadedFile(file);                    
-                    saveUploadedFile(File.separator + tempName, part);
-                    file.setFileName(tempName);
-                    
-                    files.add(file);
-                    
-                    // If everything went ok, then process the resized versions...
-                    if (ImageUtil.isImage(getContextDir() + tempName)) {
-                        try {
-                            ImageUtil.resize(getContextDir() + tempName);
-                        }
-                        catch (ServerException e) {
-                            // If cannot resize the picture, report it to admin 
-                            // and silently move on.
-                            // One possible case for this exception would be if 
-                            // we receive a file that has an extension JPG but 
-                            // is a different type of file, like a PDF.
-                            Logger.getLogger(CinnamonServlet.class.getName()).log(Level.WARNING, e.getMessage());
-                        }
-                    }
-                }
-            }
-        }
-        // Thrown if file or request size exceed the maximum limits allowed
-        catch (IllegalStateException e) {
-            throw new ServerException(bundle.getString("exception.upload.fileMaxSize"));
-        }
-        // Thrown by the saveUploadedFile function
-        catch (IOException e) {
-            throw new ServerException(bundle.getString("exception.upload.fileCannotBeSaved"));
-        }
-        // Thrown if this is not a multipart request. We just ignore it.
-        catch (ServletException e) {
-        }
-        
-        UploadedFile[] uploadedFiles = new UploadedFile[files.size()];
-        uploadedFiles = files.toArray(uploadedFiles);
-        return uploadedFiles;
-        
-    }*/
-    
-    
-    /**
-     * Uses the uploaded file's information and the current file names in 
-     * the server to assign a suitable name for the recently uploaded file.
-     * The server will try to use the submittedFileName by removing non-safe web
-     * characters and by shortening it.
-     * 
-     * Once it has a candidate name, it will look in the current uploads 
-     * directory if there's a file with that name. If there's one already, it
-     * will append a numeric suffix to the name and will look again for 
-     * a file with that name. 
-     * 
-     * The process will go on until a suitable file name is found.
-     * 
-     * @param file
-     * @return 
-     *//*
-    private String assignNameForUploadedFile(UploadedFile file) {
-        
-        String tempName;
-        
-        Calendar calendar = new GregorianCalendar();
-                    
-        // Create the upload directory structure
-        String path = UPLOADS_DIR + File.separator
-                + calendar.get(Calendar.YEAR) + File.separator
-                + (calendar.get(Calendar.MONTH) + 1) + File.separator;
-
-        File uploadsPath = new File(getContextDir() + path);
-        if (!uploadsPath.exists()) {
-            uploadsPath.mkdirs();
-        }
-        
-        // Get the preferred extension for the uploaded mime type
-        String extension = findExtension(file.getContentType());
-
-        // Create a web safe name for this file, you know, no spaces, no
-        // strange characters, max length, and so on.
-        String[] nameParts = StringUtil.splitFileNameExtension(file.getSubmittedFileName());
-        nameParts[0] = StringUtil.toSlug(nameParts[0]);
-        nameParts[1] = extension != null ? extension : StringUtil.toSlug(nameParts[1]);
-        if (nameParts[0].length() + nameParts[1].length() > MAX_UPLOAD_FILE_NAME_LENGTH) {
-            // minus 1 to remove the extra character between name and extension: "."
-            nameParts[0] = nameParts[0].substring(0, 
-                    MAX_UPLOAD_FILE_NAME_LENGTH - nameParts[1].length() - 1);
-        }
-
-        // File name may be empty if the value of submittedFileName is empty
-        if (nameParts[0].length() > 0) {
-            
-            tempName = nameParts[0] + "." + nameParts[1];
-            
-            // Now, we have to check there's no other file with this name in
-            // the target directory
-            boolean exists = true;
-            File f = new File(getContextDir() + path + tempName);
-            
-            // TODO: if there are more than 10000 files with the same
-            // name, then we will overwrite the file whose name suffix equals "-10000"
-            for (int i = 1; i < 10000 && exists; i++) {
-                exists = f.exists();
-                if (exists) {
-                    // And try a different name if there's already a
-                    // file with that name
-                    tempName = nameParts[0]
-                            + "-" + i + "."
-                            + nameParts[1];
-                    f = new File(getContextDir() + path + tempName);
-                }
-            }
-        }
-        // if tempName is empty, then assign a time stamp as name
-        else {
-            tempName = new Date().getTime() + "." + nameParts[1];
-        }
-        
-        return path + tempName;
-    }
-    
-    */
-    /** 
-     * Saves an uploaded file into the directory selected.
-     * @param path the path and file name where the file is going to be saved.
-     * @param part the HTTP part that contains the uploaded file information
-     *             and data.
-     * @throws IOException if there is an error while saving the data to disk.
-     *//*
-    private void saveUploadedFile(String path, Part part) throws IOException {
-        OutputStream out = null;
-        InputStream filecontent = null;
-        
-        try {
-            out = new FileOutputStream(new File(getContextDir() + path));
-            filecontent = part.getInputStream();
-            int read;
-            final byte[] bytes = new byte[1024];
-
-            while ((read = filecontent.read(bytes)) != -1) {
-                out.write(bytes, 0, read);
-            }
-        }
-        finally {
-            if (out != null) {
-                out.close();
-            }
-            if (filecontent != null) {
-                filecontent.close();
-            }
-        }
-    }
-    */
-    
-    /**
-     * Returns a file extension for a given content type. It looks for the 
-     * extension in the list of allowed mime types.
-     * @param mimeType
-     * @return a file extension or null if no file extension can be found.
-     *//*
-    private String findExtension(String mimeType) {
-        
-        return mimeTypes.get(mimeType);
-        
-    }*/
-    
-    
-    /**
-     * Looks for a given content type in the list of allowed mime types and
-     * returns true if it's found or false if it's not.
-     * 
-     * @param mimeType
-     * @return true if the mime type is found or false if not.
-     *//*
-    private boolean isAllowedContentType(String mimeType) {
-        
-        return mimeTypes.containsKey(mimeType);
-            
-    }*/
-    
 
 }
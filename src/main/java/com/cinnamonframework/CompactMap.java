@@ -0,0 +1,329 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map for the few entries that per request objects usually keep, like
+ * the model or the session attributes.
+ * 
+ * Up to MaxArraySize entries are kept in a single array of alternating
+ * keys and values, in insertion order, and looked up linearly; for so few 
+ * entries that's as fast as hashing and it allocates much less. Beyond 
+ * that, entries are moved into a HashMap. Nothing is allocated until the
+ * first entry is added.
+ * 
+ * Like HashMap, it accepts null keys and values and is not thread safe.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class CompactMap<K, V> extends AbstractMap<K, V> {
+    
+    static final int MaxArraySize = 8;
+    
+    /**
+     * Keys at even positions, each followed by its value. 
+     */
+    private Object[] table;
+    private int size;
+    
+    /**
+     * Keeps the entries once there are more than MaxArraySize; table is not
+     * used after that.
+     */
+    private HashMap<K, V> map;
+    
+    private int modCount;
+    private Set<Entry<K, V>> entrySet;
+    
+    
+    @Override
+    public int size() {
+        return map != null ? map.size() : size;
+    }
+    
+    
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    
+    @Override
+    public boolean containsKey(Object key) {
+        return map != null ? map.containsKey(key) : indexOf(key) >= 0;
+    }
+    
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (map != null) 
+            return map.get(key);
+        
+        int i = indexOf(key);
+        return i >= 0 ? (V) table[i + 1] : null;
+    }
+    
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (map != null)
+            return map.put(key, value);
+        
+        int i = indexOf(key);
+        if (i >= 0) {
+            V old = (V) table[i + 1];
+            table[i + 1] = value;
+            return old;
+        }
+        
+        modCount++;
+        
+        if (size == MaxArraySize) {
+            map = new HashMap<>(MaxArraySize * 4);
+            for (i = 0; i < size * 2; i += 2) {
+                map.put((K) table[i], (V) table[i + 1]);
+            }
+            map.put(key, value);
+            table = null;
+            size = 0;
+            return null;
+        }
+        
+        if (table == null) {
+            table = new Object[MaxArraySize * 2];
+        }
+        table[size * 2] = key;
+        table[size * 2 + 1] = value;
+        size++;
+        return null;
+    }
+    
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (map != null)
+            return map.remove(key);
+        
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+        
+        V old = (V) table[i + 1];
+        removeAt(i);
+        return old;
+    }
+    
+    
+    @Override
+    public void clear() {
+        modCount++;
+        map = null;
+        if (table != null) {
+            for (int i = 0; i < size * 2; i++) {
+                table[i] = null;
+            }
+        }
+        size = 0;
+    }
+    
+    
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+    
+    
+    /**
+     * @return the position of the key in table, or -1 if it's not there.
+     */
+    private int indexOf(Object key) {
+        for (int i = 0; i < size * 2; i += 2) {
+            Object k = table[i];
+            if (k == key || (key != null && key.equals(k))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    
+    /**
+     * Removes the entry at the given position, keeping the others in 
+     * insertion order.
+     */
+    private void removeAt(int i) {
+        modCount++;
+        int last = size * 2 - 2;
+        System.arraycopy(table, i + 2, table, i, last - i);
+        table[last] = null;
+        table[last + 1] = null;
+        size--;
+    }
+    
+    
+    private final class EntrySet extends AbstractSet<Entry<K, V>> {
+        
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return map != null ? map.entrySet().iterator() : new ArrayIterator();
+        }
+        
+        @Override
+        public int size() {
+            return CompactMap.this.size();
+        }
+        
+        @Override
+        public void clear() {
+            CompactMap.this.clear();
+        }
+        
+    }
+    
+    
+    private final class ArrayIterator implements Iterator<Entry<K, V>> {
+        
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+        
+        @Override
+        public boolean hasNext() {
+            return next < size && map == null;
+        }
+        
+        @Override
+        public Entry<K, V> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next >= size)
+                throw new NoSuchElementException();
+            
+            last = next++;
+            return new ArrayEntry(last * 2);
+        }
+        
+        @Override
+        public void remove() {
+            if (last < 0)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            
+            removeAt(last * 2);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+        
+    }
+    
+    
+    /**
+     * An entry of the array. It keeps its key and value, so it can still be
+     * read after it's removed through the iterator; setValue writes through
+     * to the map.
+     */
+    private final class ArrayEntry implements Entry<K, V> {
+        
+        private final K key;
+        private V value;
+        
+        @SuppressWarnings("unchecked")
+        ArrayEntry(int index) {
+            this.key = (K) table[index];
+            this.value = (V) table[index + 1];
+        }
+        
+        @Override
+        public K getKey() {
+            return key;
+        }
+        
+        @Override
+        public V getValue() {
+            return value;
+        }
+        
+        @Override
+        public V setValue(V value) {
+            V old = this.value;
+            this.value = value;
+            if (map == null) {
+                int i = indexOf(key);
+                if (i >= 0) {
+                    table[i + 1] = value;
+                }
+            }
+            return old;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return eq(getKey(), e.getKey()) && eq(getValue(), e.getValue());
+        }
+        
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+        
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+        
+    }
+    
+    
+    private static boolean eq(Object a, Object b) {
+        return a == b || (a != null && a.equals(b));
+    }
+    
+}
@@ -30,7 +30,9 @@
  */
 package com.cinnamonframework;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -43,7 +45,7 @@ public abstract class Controller {
     protected Messages messages = null;
     protected Request request = null;
     protected Session session = null;
-    protected Map<String, Object> model = new HashMap<>();
+    protected Map<String, Object> model = new CompactMap<>();
     
     final void setMessages(Messages messages) {
         this.messages = messages;
@@ -64,6 +66,51 @@ public abstract class Controller {
         return result;
     }
     
+    /**
+     * Returns pre-encoded content. Since no encoding takes place, the 
+     * content must already be encoded using the charset given in the
+     * content type. Useful for cached or constant responses.
+     * @param bytes the content to send.
+     * @param contentType the content type, including its charset.
+     * @return a Result that writes the given bytes.
+     */
+    protected Result custom(byte[] bytes, String contentType) {
+        Result result = new Result();
+        result.setBytes(bytes);
+        result.setContentType(contentType);
+        return result;
+    }
+    
+    /**
+     * Returns pre-encoded content from a buffer. Bytes between the buffer's
+     * position and limit are sent; the buffer itself is not modified, so it
+     * can be shared among requests.
+     * @param bytes the content to send.
+     * @param contentType the content type, including its charset.
+     * @return a Result that writes the given bytes.
+     */
+    protected Result custom(ByteBuffer bytes, String contentType) {
+        Result result = new Result();
+        result.setBytes(bytes);
+        result.setContentType(contentType);
+        return result;
+    }
+    
+    /**
+     * Returns the content of a file. The file is sent with its length and,
+     * when the container supports it, without copying it into the 
+     * application.
+     * @param file the file to send.
+     * @param contentType the file content type.
+     * @return a Result that sends the given file.
+     */
+    protected Result file(Path file, String contentType) {
+        Result result = new Result();
+        result.setFile(file);
+        result.setContentType(contentType);
+        return result;
+    }
+    
     // TODO: 
     /*
     protected Result custom(OutputStream stream, String contentType) {
@@ -92,6 +139,27 @@ public abstract class Controller {
         return result;
     }
     
+    /**
+     * Renders a Cinnamon template from /WEB-INF/templates/. Templates are
+     * compiled once and rendered straight from the model, which makes them
+     * faster than forwarding to a JSP.
+     * @param template the template name, without the ".html" extension.
+     * @return a Result that renders the given template.
+     */
+    protected Result template(String template) {
+        Result result = new Result();
+        result.setTemplate(template);
+        result.setContentType(Result.ContentType.TextHtml);
+        return result;
+    }
+    
+    protected Result template(String template, String contentType) {
+        Result result = new Result();
+        result.setTemplate(template);
+        result.setContentType(contentType);
+        return result;
+    }
+    
     protected Result json(String json) {
         Result result = new Result();
         result.setContent(json);
@@ -99,6 +167,82 @@ public abstract class Controller {
         return result;
     }
     
+    /**
+     * Serializes a value as JSON using the framework serializer. Maps,
+     * collections, arrays, beans (through their public getters and fields),
+     * strings, numbers, booleans, enums and dates are supported.
+     * @param value the value to serialize.
+     * @return a Result that writes the serialized value.
+     */
+    protected Result json(Object value) {
+        Result result = new Result();
+        result.setJson(value);
+        result.setContentType(Result.ContentType.Json);
+        return result;
+    }
+    
+    /**
+     * Serializes the model as a JSON object.
+     * @return a Result that writes the serialized model.
+     */
+    protected Result json() {
+        return json((Object) model);
+    }
+    
+    /**
+     * Keeps the connection open to send Server-Sent Events. Keep a reference
+     * to the stream to send events from any thread once this action returns.
+     * @param stream the stream that will send the events.
+     * @return a Result that turns the response into an event stream.
+     */
+    protected Result events(EventStream stream) {
+        Result result = new Result();
+        result.setEventStream(stream);
+        result.setContentType(Result.ContentType.EventStream);
+        return result;
+    }
+    
+    /**
+     * Streams records as newline delimited JSON, one document per line. 
+     * Records are encoded as they are read from the iterator, so they do 
+     * not need to be held in memory; use stream.iterator() to send the
+     * elements of a java.util.stream.Stream. If the iterator is 
+     * AutoCloseable, it gets closed once all records are sent.
+     * @param records the records to stream.
+     * @return a Result that streams the given records.
+     */
+    protected Result ndjson(Iterator<?> records) {
+        Result result = new Result();
+        result.setNdjson(records);
+        result.setContentType(Result.ContentType.Ndjson);
+        return result;
+    }
+    
+    protected Result ndjson(Iterable<?> records) {
+        return ndjson(records.iterator());
+    }
+    
+    /**
+     * Streams records as CSV. Records can be arrays, iterables, maps or 
+     * beans; for maps and beans a header row is sent first. Records are 
+     * encoded as they are read from the iterator, so they do not need to be
+     * held in memory; use stream.iterator() to send the elements of a
+     * java.util.stream.Stream. If the iterator is AutoCloseable, it gets
+     * closed once all records are sent.
+     * @param records the records to stream.
+     * @return a Result that streams the given records.
+     */
+    protected Result csv(Iterator<?> records) {
+        Result result = new Result();
+        result.setCsv(records);
+        result.setContentType(Result.ContentType.Csv);
+        return result;
+    }
+    
+    protected Result csv(Iterable<?> records) {
+        return csv(records.iterator());
+    }
+    
     protected Result redirect(String redirect) {
         Result result = new Result();
         result.setRedirect(redirect);
@@ -78,6 +78,68 @@ class ControllerManager {
         
     }
     
+    /**
+     * Checks the request against the rate limits (see RateLimit) and upload
+     * limits (see UploadLimit) of the requested action, before the request
+     * body is read. Unknown actions are accepted here and reported by 
+     * invoke.
+     * @param route the requested action, or null if it does not exist.
+     * @param instance
+     * @param httpServletRequest
+     * @param rateLimitManager
+     * @throws RequestRejectedException if the request is not accepted.
+     */
+    static void admit(RouteTable.Route route, Controller instance, HttpServletRequest httpServletRequest,
+            RateLimitManager rateLimitManager) throws RequestRejectedException {
+        
+        if (route == null)
+            return;
+        
+        if (route.getLimiter() != null) {
+            rateLimitManager.check(route.getLimiter(), instance, httpServletRequest);
+        }
+        AdmissionManager.admit(route.getUploadLimit(), httpServletRequest);
+        
+    }
+    
+    /**
+     * Calls the action through its interceptors, if it has any.
+     * @param route the requested action, or null if it does not exist.
+     * @param instance
+     * @param urlAnalyzer
+     * @param httpServletRequest
+     * @param timer measures the interceptors, binding and action phases.
+     * @return
+     * @throws UrlNotFoundException if the action does not exist.
+     * @throws ServerException 
+     */
+    static Result invoke(RouteTable.Route route, Controller instance, UrlAnalyzer urlAnalyzer, 
+            HttpServletRequest httpServletRequest, RequestTimer timer) throws UrlNotFoundException, ServerException {
+        
+        if (route == null) {
+            throw new UrlNotFoundException(
+                "Path to \"" +
+                urlAnalyzer.getClassName() + "." +
+                urlAnalyzer.getMethodName() + "\" was not found or access is not allowed.");
+        }
+        
+        if (route.getInterceptors().length == 0) {
+            return execute(route, instance, urlAnalyzer, httpServletRequest, timer);
+        }
+        
+        try {
+            return new Invocation(route, instance, urlAnalyzer, httpServletRequest, timer).proceed();
+        }
+        catch (RuntimeException e) {
+            throw new ServerException(
+                "Cinnamon captured an unhandled exception in an interceptor of: \"" +
+                urlAnalyzer.getClassName() + "." +
+                urlAnalyzer.getMethodName() + "\", details: " + 
+                e.getMessage(), e);
+        }
+        
+    }
+    
     /**
      * Performs the Controller's method invocation.
      * Consider adding the following line if multiple calls will be
@@ -92,26 +154,27 @@ class ControllerManager {
      * the method. Then for a second test, log before and after, but include the
      * setAccessible call in-between.
      * 
+     * @param route
      * @param instance
      * @param urlAnalyzer
+     * @param timer
      * @return
      * @throws UrlNotFoundException
      * @throws ServerException 
      */
-    static Result invoke(Controller instance, UrlAnalyzer urlAnalyzer, HttpServletRequest httpServletRequest) throws UrlNotFoundException, ServerException {
+    static Result execute(RouteTable.Route route, Controller instance, UrlAnalyzer urlAnalyzer, 
+            HttpServletRequest httpServletRequest, RequestTimer timer) throws UrlNotFoundException, ServerException {
         
-        Method method;
+        Method method = route.getMethod();
+        timer.lap(RequestTimer.Phase.Interceptors);
         
         try {
-            method = getMethod(instance, urlAnalyzer);
             Object[] parameters = ParameterManager.getParameters(instance, method, httpServletRequest, urlAnalyzer);
-            return (Result) method.invoke(instance, parameters);
+            timer.lap(RequestTimer.Phase.Binding);
+            Result result = (Result) method.invoke(instance, parameters);
+            timer.lap(RequestTimer.Phase.Action);
+            return result;
             
-        } catch (NoSuchMethodException | SecurityException e) {
-            throw new UrlNotFoundException(
-                "Path to \"" +
-                urlAnalyzer.getClassName() + "." +
-                urlAnalyzer.getMethodName() + "\" was not found or access is not allowed.", e);
         } 
         catch (UnsupportedTypeException | NonMatchingAnnotationsException e) {
             throw new ServerException(
@@ -134,7 +197,7 @@ class ControllerManager {
     
     
     /**
-     * Looks for a method named urlAnalyzer.getMethod() and
+     * Looks for a method named methodName and
      * returns it.
      * If the target instance contains more than one public method
      * with the required name, this method will return only the first 
@@ -155,24 +218,29 @@ class ControllerManager {
      * Though not really sure if can be useful:
      * http://stackoverflow.com/questions/24649476/java-servlet-request-getparameter-returns-a-parameter-from-the-query-string
      * 
-     * @param instance
-     * @param urlAnalyzer
-     * @return
-     * @throws NoSuchMethodException 
+     * @param type the controller class.
+     * @param methodName the requested action.
+     * @return the method or null if not found or access is not allowed.
      */
-    private static Method getMethod(Controller instance, UrlAnalyzer urlAnalyzer) throws NoSuchMethodException {
+    static Method findMethod(Class<?> type, String methodName) {
         
-        Method[] methods = instance.getClass().getMethods();
+        Method[] methods;
+        try {
+            methods = type.getMethods();
+        }
+        catch (SecurityException e) {
+            return null;
+        }
         
         for (Method method : methods) {
-            if (method.getName().equals(urlAnalyzer.getMethodName())
+            if (method.getName().equals(methodName)
                 && method.getReturnType() == Result.class) {
                 
                 return method;
             }
         }
         
-        throw new NoSuchMethodException("Requested method does not exist.");
+        return null;
         
     }
     
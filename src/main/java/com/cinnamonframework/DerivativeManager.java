@@ -0,0 +1,311 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import com.cinnamonframework.util.Files;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Creates resized versions (derivatives) of uploaded images in the 
+ * background, so upload requests return as soon as the original file is 
+ * stored.
+ * 
+ * Jobs run on a pool with one thread per core and a bounded queue. When the
+ * queue is full, new jobs are dropped and logged, and their files get the 
+ * Failed status; request threads never resize images themselves.
+ * 
+ * Every derivative is written to a temporary file and atomically moved into
+ * place, so a derivative is either complete or missing, never partial. 
+ * Derivatives are saved in their own directory tree, one per size, that 
+ * mirrors the uploads directory: the small version of 2014/5/photo.jpg is 
+ * .derivatives/small/2014/5/photo.jpg. Uploaded files never start with a 
+ * dot, so derivatives cannot take or replace their names.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class DerivativeManager {
+    
+    static final String DefaultSizes = "small=160, medium=480, large=1024";
+    
+    /**
+     * Jobs waiting per worker thread before new jobs are dropped.
+     */
+    static final int QueuedJobsPerThread = 64;
+    
+    static final String Directory = ".derivatives";
+    
+    private static final String logger = DerivativeManager.class.getName();
+    
+    private final Map<String, Integer> sizes;
+    private final ThreadPoolExecutor executor;
+    
+    
+    /**
+     * @param sizes a comma separated list of size names and their maximum
+     *        width and height in pixels, for example: "small=160, large=1024".
+     */
+    DerivativeManager(String sizes) {
+        this.sizes = parseSizes(sizes);
+        
+        int threads = Runtime.getRuntime().availableProcessors();
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * QueuedJobsPerThread),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cinnamon-derivatives-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+    
+    
+    /**
+     * @return the configured size names and their maximum dimensions.
+     */
+    Map<String, Integer> getSizes() {
+        return sizes;
+    }
+    
+    
+    /**
+     * Queues the creation of derivatives for an uploaded file, if it's an
+     * image.
+     * @param file a file that has already been stored.
+     */
+    void submit(final UploadedFile file) {
+        
+        if (sizes.isEmpty() || file.getContentType() == null 
+            || !file.getContentType().startsWith("image/")) {
+            return;
+        }
+        
+        file.setDerivativeSizes(sizes.keySet());
+        
+        // Shared files may already have their derivatives.
+        if (file.isShared() && allExist(file)) {
+            file.setDerivativeStatus(UploadedFile.DerivativeStatus.Done);
+            return;
+        }
+        
+        file.setDerivativeStatus(UploadedFile.DerivativeStatus.Pending);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    process(file);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            Logger.getLogger(logger).log(Level.WARNING, 
+                "Derivatives for \"{0}\" were not created, too many images are waiting to be resized.", 
+                file.getPath());
+            file.setDerivativeStatus(UploadedFile.DerivativeStatus.Failed);
+        }
+    }
+    
+    
+    /**
+     * Stops the worker threads. Queued jobs are discarded.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    
+    /**
+     * Returns the path of a derivative: the original path relative to the
+     * uploads directory, under .derivatives/size. Files outside the uploads
+     * directory keep their derivatives in a .derivatives/size directory 
+     * next to them.
+     * @param directory the uploads directory, or null.
+     * @param original the original file path.
+     * @param size a size name.
+     * @return the derivative path.
+     */
+    static Path derivativePath(Path directory, Path original, String size) {
+        if (directory != null && original.startsWith(directory)) {
+            return directory.resolve(Directory).resolve(size).resolve(directory.relativize(original));
+        }
+        return original.resolveSibling(Directory).resolve(size).resolve(original.getFileName());
+    }
+    
+    
+    private boolean allExist(UploadedFile file) {
+        for (String size : sizes.keySet()) {
+            if (!java.nio.file.Files.exists(derivativePath(file.getDirectory(), file.getPath(), size))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
+    private void process(UploadedFile file) {
+        
+        file.setDerivativeStatus(UploadedFile.DerivativeStatus.Running);
+        
+        try {
+            BufferedImage image = ImageIO.read(file.getPath().toFile());
+            if (image == null) {
+                // One possible case would be if we receive a file that has 
+                // an image content type but is a different type of file, 
+                // like a PDF.
+                throw new IOException("\"" + file.getPath() + "\" is not a supported image.");
+            }
+            
+            String format = Files.getExtension(file.getPath().getFileName().toString()).toLowerCase(Locale.ENGLISH);
+            for (Map.Entry<String, Integer> size : sizes.entrySet()) {
+                Path target = derivativePath(file.getDirectory(), file.getPath(), size.getKey());
+                java.nio.file.Files.createDirectories(target.getParent());
+                write(resize(image, size.getValue(), size.getValue(), format), format, target);
+            }
+            
+            file.setDerivativeStatus(UploadedFile.DerivativeStatus.Done);
+        }
+        catch (IOException | RuntimeException e) {
+            // If cannot resize the picture, report it to admin 
+            // and silently move on.
+            Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
+            file.setDerivativeStatus(UploadedFile.DerivativeStatus.Failed);
+        }
+        
+    }
+    
+    
+    /**
+     * Scales an image down so it fits in a maxWidth x maxHeight box, keeping
+     * its aspect ratio. Smaller images keep their size. 
+     * @param maxWidth the maximum width, or 0 for no limit.
+     * @param maxHeight the maximum height, or 0 for no limit.
+     * @param format the file extension of the target image.
+     */
+    static BufferedImage resize(BufferedImage image, int maxWidth, int maxHeight, String format) {
+        
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double scale = 1.0;
+        if (maxWidth > 0) {
+            scale = Math.min(scale, (double) maxWidth / width);
+        }
+        if (maxHeight > 0) {
+            scale = Math.min(scale, (double) maxHeight / height);
+        }
+        int w = Math.max(1, (int) Math.round(width * scale));
+        int h = Math.max(1, (int) Math.round(height * scale));
+        
+        // JPEG does not support transparency
+        boolean alpha = image.getColorModel().hasAlpha() && !isJpeg(format);
+        BufferedImage resized = new BufferedImage(w, h, 
+            alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        
+        Graphics2D g = resized.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.drawImage(image, 0, 0, w, h, null);
+        }
+        finally {
+            g.dispose();
+        }
+        
+        return resized;
+    }
+    
+    
+    /**
+     * Writes an image into a temporary file and moves it atomically into 
+     * place.
+     */
+    static void write(BufferedImage image, String format, Path target) throws IOException {
+        
+        Path temp = UploadManager.createTempFile(target.getParent(), ".derivative-");
+        try {
+            if (!ImageIO.write(image, isJpeg(format) ? "jpeg" : format, temp.toFile())) {
+                throw new IOException("There is no image writer for \"" + format + "\".");
+            }
+            java.nio.file.Files.move(temp, target, 
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(temp);
+        }
+        
+    }
+    
+    
+    static boolean isJpeg(String format) {
+        return format.equals("jpg") || format.equals("jpeg");
+    }
+    
+    
+    /**
+     * @param sizes a comma separated list of size names and their maximum
+     *        width and height in pixels, for example: "small=160, large=1024".
+     * @return the size names and their dimensions, in the given order.
+     * @throws NumberFormatException if a dimension is not a number.
+     */
+    static Map<String, Integer> parseSizes(String sizes) {
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for (String entry : sizes.split(",")) {
+            String[] pair = entry.split("=");
+            if (pair.length == 2 && pair[0].trim().length() > 0) {
+                map.put(pair[0].trim(), Integer.parseInt(pair[1].trim()));
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+    
+}
@@ -0,0 +1,388 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * A long-lived stream of Server-Sent Events. A controller creates an 
+ * EventStream, keeps a reference to it (usually registering it with the
+ * component that produces the events) and returns it using 
+ * Controller.events(stream). From then on, events can be sent from any 
+ * thread.
+ * 
+ * Events are written using non-blocking I/O, so open streams do not hold a 
+ * container thread. Every stream has a bounded buffer; if a client does not
+ * read fast enough and the buffer fills up, the stream is closed (the 
+ * browser will reconnect by itself). Heartbeat comments are sent when a 
+ * stream is idle, so proxies do not drop the connection.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+public class EventStream {
+    
+    /**
+     * Default buffer size per stream, in bytes.
+     */
+    public static final int DefaultCapacity = 64 * 1024;
+    
+    private static final String logger = EventStream.class.getName();
+    private static final byte[] Heartbeat = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    
+    private final int capacity;
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingBytes = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final Object lock = new Object();
+    
+    private volatile long lastActivity = System.nanoTime();
+    private volatile long lastProgress = System.nanoTime();
+    private final AtomicReference<Runnable> closeListener = new AtomicReference<>();
+    
+    // Guarded by lock
+    private AsyncContext asyncContext = null;
+    private ServletOutputStream out = null;
+    private byte[] current = null;
+    private boolean unflushed = false;
+    private EventStreamManager manager = null;
+    
+    
+    /**
+     * Creates an event stream with the default buffer size.
+     */
+    public EventStream() {
+        this(DefaultCapacity);
+    }
+    
+    
+    /**
+     * Creates an event stream.
+     * @param capacity the maximum number of bytes waiting to be sent to the
+     *        client before the stream is considered too slow and closed.
+     */
+    public EventStream(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be greater than zero.");
+        
+        this.capacity = capacity;
+    }
+    
+    
+    /**
+     * Sends an unnamed event.
+     * @param data the event data; it may contain several lines.
+     * @return false if the stream is closed or it has been closed because 
+     *         the client is too slow.
+     */
+    public boolean send(String data) {
+        return send(null, null, data);
+    }
+    
+    
+    /**
+     * Sends a named event.
+     * @param event the event name, or null.
+     * @param data the event data; it may contain several lines.
+     * @return false if the stream is closed or it has been closed because 
+     *         the client is too slow.
+     */
+    public boolean send(String event, String data) {
+        return send(null, event, data);
+    }
+    
+    
+    /**
+     * Sends an event.
+     * @param id the event id, sent back by browsers as Last-Event-ID when 
+     *        they reconnect, or null.
+     * @param event the event name, or null.
+     * @param data the event data; it may contain several lines.
+     * @return false if the stream is closed or it has been closed because 
+     *         the client is too slow.
+     * @throws IllegalArgumentException if id or event contain line breaks.
+     */
+    public boolean send(String id, String event, String data) {
+        if (data == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        return enqueue(encode(id, event, data));
+    }
+    
+    
+    /**
+     * Closes the stream and ends the response.
+     */
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        
+        synchronized (lock) {
+            queue.clear();
+            current = null;
+            if (asyncContext != null) {
+                try {
+                    asyncContext.complete();
+                }
+                catch (IllegalStateException e) {
+                    // The request is already completed.
+                }
+            }
+            if (manager != null) {
+                manager.remove(this);
+            }
+        }
+        
+        notifyCloseListener();
+    }
+    
+    
+    /**
+     * @return true if events can still be sent.
+     */
+    public boolean isOpen() {
+        return !closed.get();
+    }
+    
+    
+    /**
+     * Sets a listener that is called once, when the stream gets closed for
+     * any reason: the client disconnected, it was too slow, or close was
+     * called. Useful to unregister the stream from the event producer.
+     * @param listener the listener to call.
+     */
+    public void setCloseListener(Runnable listener) {
+        closeListener.set(listener);
+        if (closed.get()) {
+            notifyCloseListener();
+        }
+    }
+    
+    
+    private void notifyCloseListener() {
+        // getAndSet makes sure the listener is called only once
+        Runnable listener = closeListener.getAndSet(null);
+        if (listener != null) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException e) {
+                Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Connects this stream to an asynchronous response and starts writing
+     * pending events.
+     * @param asyncContext the asynchronous context of the request.
+     * @param manager the manager that sends heartbeats to this stream.
+     * @throws IOException if the output stream cannot be obtained.
+     */
+    void attach(AsyncContext asyncContext, EventStreamManager manager) throws IOException {
+        
+        ServletOutputStream stream = asyncContext.getResponse().getOutputStream();
+        
+        synchronized (lock) {
+            // Closed before it got attached, because of a call to close or 
+            // because the buffer filled up.
+            if (closed.get()) {
+                asyncContext.complete();
+                return;
+            }
+            this.asyncContext = asyncContext;
+            this.manager = manager;
+            this.out = stream;
+        }
+        
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                close();
+            }
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                close();
+            }
+            @Override
+            public void onError(AsyncEvent event) {
+                close();
+            }
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+        
+        // The container calls onWritePossible as soon as the listener is
+        // set, which writes any events sent before attaching.
+        stream.setWriteListener(new WriteListener() {
+            @Override
+            public void onWritePossible() {
+                drain();
+            }
+            @Override
+            public void onError(Throwable t) {
+                close();
+            }
+        });
+    }
+    
+    
+    /**
+     * Sends a heartbeat if nothing has been sent for the given time, and
+     * closes the stream if the client has not read anything for too long.
+     * @param idleNanos time without activity after which a heartbeat is sent.
+     * @param stalledNanos time without progress after which a client with
+     *        pending data is considered too slow.
+     */
+    void heartbeat(long idleNanos, long stalledNanos) {
+        long now = System.nanoTime();
+        if (pendingBytes.get() > 0 && now - lastProgress > stalledNanos) {
+            Logger.getLogger(logger).log(Level.FINE, "EventStream: Closing stalled client connection.");
+            close();
+        }
+        else if (now - lastActivity > idleNanos) {
+            enqueue(Heartbeat);
+        }
+    }
+    
+    
+    private boolean enqueue(byte[] bytes) {
+        if (closed.get()) {
+            return false;
+        }
+        
+        // Slow consumer: drop it instead of buffering without limits.
+        if (pendingBytes.addAndGet(bytes.length) > capacity) {
+            Logger.getLogger(logger).log(Level.FINE, "EventStream: Closing slow client connection, buffer is full.");
+            close();
+            return false;
+        }
+        
+        queue.add(bytes);
+        lastActivity = System.nanoTime();
+        drain();
+        return true;
+    }
+    
+    
+    /**
+     * Writes queued events while the output stream accepts them without 
+     * blocking. If it stops accepting them, the container will call 
+     * onWritePossible once it's ready again.
+     */
+    private void drain() {
+        synchronized (lock) {
+            if (out == null || closed.get()) {
+                return;
+            }
+            
+            try {
+                while (out.isReady()) {
+                    if (current == null) {
+                        current = queue.poll();
+                    }
+                    if (current != null) {
+                        out.write(current);
+                        pendingBytes.addAndGet(-current.length);
+                        lastProgress = System.nanoTime();
+                        current = null;
+                        unflushed = true;
+                    }
+                    else if (unflushed) {
+                        out.flush();
+                        unflushed = false;
+                    }
+                    else {
+                        return;
+                    }
+                }
+            }
+            catch (IOException | IllegalStateException e) {
+                // Client went away
+                close();
+            }
+        }
+    }
+    
+    
+    /**
+     * Encodes an event using the text/event-stream format.
+     */
+    private static byte[] encode(String id, String event, String data) {
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        
+        if (id != null) {
+            sb.append("id: ").append(field(id)).append('\n');
+        }
+        if (event != null) {
+            sb.append("event: ").append(field(event)).append('\n');
+        }
+        
+        int start = 0;
+        int length = data.length();
+        for (int i = 0; i <= length; i++) {
+            if (i == length || data.charAt(i) == '\n' || data.charAt(i) == '\r') {
+                sb.append("data: ").append(data, start, i).append('\n');
+                if (i < length - 1 && data.charAt(i) == '\r' && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        sb.append('\n');
+        
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    
+    private static String field(String s) {
+        if (s.indexOf('\n') >= 0 || s.indexOf('\r') >= 0)
+            throw new IllegalArgumentException("Event ids and names cannot contain line breaks.");
+        
+        return s;
+    }
+    
+}
@@ -0,0 +1,135 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+
+/**
+ * Keeps track of open event streams and sends them heartbeats from a single
+ * background thread. No thread is used per connection.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class EventStreamManager {
+    
+    /**
+     * Seconds without activity after which a heartbeat is sent.
+     */
+    static final long HeartbeatInterval = 15;
+    
+    /**
+     * Seconds a client may go without reading pending data before it gets
+     * disconnected.
+     */
+    static final long StalledTimeout = 60;
+    
+    private final Set<EventStream> streams = 
+        Collections.newSetFromMap(new ConcurrentHashMap<EventStream, Boolean>());
+    private ScheduledExecutorService scheduler = null;
+    
+    
+    /**
+     * Turns the given request into an event stream.
+     * @param stream the stream that will send events.
+     * @param asyncContext the asynchronous context of the request.
+     * @throws IOException if the response output stream cannot be obtained.
+     */
+    void open(EventStream stream, AsyncContext asyncContext) throws IOException {
+        // Streams never time out, they're closed by the client, the 
+        // application, or by this manager if the client is too slow.
+        asyncContext.setTimeout(0);
+        startHeartbeats();
+        streams.add(stream);
+        stream.attach(asyncContext, this);
+    }
+    
+    
+    void remove(EventStream stream) {
+        streams.remove(stream);
+    }
+    
+    
+    /**
+     * Closes all open streams and stops sending heartbeats.
+     */
+    synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        for (EventStream stream : streams) {
+            stream.close();
+        }
+        streams.clear();
+    }
+    
+    
+    private synchronized void startHeartbeats() {
+        if (scheduler != null) {
+            return;
+        }
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cinnamon-event-streams");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        final long idle = TimeUnit.SECONDS.toNanos(HeartbeatInterval);
+        final long stalled = TimeUnit.SECONDS.toNanos(StalledTimeout);
+        
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (EventStream stream : streams) {
+                    if (stream.isOpen()) {
+                        stream.heartbeat(idle, stalled);
+                    }
+                    else {
+                        streams.remove(stream);
+                    }
+                }
+            }
+        }, HeartbeatInterval, HeartbeatInterval, TimeUnit.SECONDS);
+    }
+    
+}
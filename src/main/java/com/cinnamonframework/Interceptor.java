@@ -0,0 +1,60 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+/**
+ * Runs around the actions it's registered for, either globally, with the
+ * com.cinammonframework.interceptors parameter, or with the Intercept 
+ * annotation. Interceptors are useful for the logic shared by many 
+ * actions, like authentication, auditing or tenant resolution.
+ * 
+ * An interceptor calls invocation.proceed() to run the next interceptor
+ * or, if it's the last one, the action. It can return its own Result 
+ * instead, in which case the action is not called and its parameters are
+ * not even read from the request.
+ * 
+ * A single instance of each interceptor class serves all requests, so 
+ * implementations must be thread safe.
+ * 
+ * @see InterceptorAdapter
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+public interface Interceptor {
+    
+    /**
+     * @param invocation the action being called.
+     * @return the result of invocation.proceed(), possibly changed, or a 
+     *         result of its own.
+     * @throws ServerException 
+     */
+    public Result intercept(Invocation invocation) throws ServerException;
+    
+}
@@ -0,0 +1,74 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+/**
+ * An interceptor that runs code before and after an action. Subclasses
+ * override the method they need.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+public abstract class InterceptorAdapter implements Interceptor {
+    
+    /**
+     * Called before the action.
+     * @param invocation the action being called.
+     * @return null to go on, or a result to return it without calling the 
+     *         action.
+     * @throws ServerException 
+     */
+    protected Result before(Invocation invocation) throws ServerException {
+        return null;
+    }
+    
+    
+    /**
+     * Called after the action, unless before returned a result.
+     * @param invocation the action being called.
+     * @param result the action result.
+     * @return the result to send.
+     * @throws ServerException 
+     */
+    protected Result after(Invocation invocation, Result result) throws ServerException {
+        return result;
+    }
+    
+    
+    @Override
+    public Result intercept(Invocation invocation) throws ServerException {
+        Result result = before(invocation);
+        if (result != null) {
+            return result;
+        }
+        return after(invocation, invocation.proceed());
+    }
+    
+}
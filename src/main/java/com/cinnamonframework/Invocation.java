@@ -0,0 +1,124 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * An action call going through its interceptors.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+public final class Invocation {
+    
+    private final RouteTable.Route route;
+    private final Controller controller;
+    private final UrlAnalyzer urlAnalyzer;
+    private final HttpServletRequest httpServletRequest;
+    private final RequestTimer timer;
+    private int next = 0;
+    
+    
+    Invocation(RouteTable.Route route, Controller controller, UrlAnalyzer urlAnalyzer,
+            HttpServletRequest httpServletRequest, RequestTimer timer) {
+        this.route = route;
+        this.controller = controller;
+        this.urlAnalyzer = urlAnalyzer;
+        this.httpServletRequest = httpServletRequest;
+        this.timer = timer;
+    }
+    
+    
+    /**
+     * Runs the next interceptor or, after the last one, reads the action
+     * parameters and calls the action.
+     * @return the result of the rest of the chain.
+     * @throws ServerException 
+     */
+    public Result proceed() throws ServerException {
+        Interceptor[] interceptors = route.getInterceptors();
+        if (next < interceptors.length) {
+            return interceptors[next++].intercept(this);
+        }
+        return ControllerManager.execute(route, controller, urlAnalyzer, httpServletRequest, timer);
+    }
+    
+    
+    /**
+     * @return the controller that handles the request.
+     */
+    public Controller getController() {
+        return controller;
+    }
+    
+    
+    /**
+     * @return the action being called.
+     */
+    public Method getMethod() {
+        return route.getMethod();
+    }
+    
+    
+    /**
+     * Returns an annotation of the action or, if the action does not have 
+     * it, of the controller class. Annotations are looked up once per 
+     * route, so this does not use reflection.
+     * @param type the annotation type.
+     * @return the annotation or null if neither of them has it.
+     */
+    public <A extends Annotation> A getAnnotation(Class<A> type) {
+        return route.getAnnotation(type);
+    }
+    
+    
+    public Request getRequest() {
+        return controller.request;
+    }
+    
+    
+    public Session getSession() {
+        return controller.session;
+    }
+    
+    
+    public Messages getMessages() {
+        return controller.messages;
+    }
+    
+    
+    public HttpServletRequest getHttpServletRequest() {
+        return httpServletRequest;
+    }
+    
+}
@@ -0,0 +1,326 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cinnamon's JSON serializer. It writes UTF-8 directly into an output stream
+ * using a per-thread reusable buffer.
+ * 
+ * Supported values are: null, strings and characters, booleans, numbers,
+ * enums (as their name), dates (as milliseconds since the epoch), maps, 
+ * iterables, arrays and beans. Beans are written using their public getters
+ * and fields, as found by BeanPlan; property names are escaped and encoded 
+ * only once per class.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class JsonSerializer {
+    
+    /**
+     * Maximum nesting level, used to detect circular references.
+     */
+    static final int MaxDepth = 64;
+    
+    private static final ClassValue<byte[][]> names = new ClassValue<byte[][]>() {
+        @Override
+        protected byte[][] computeValue(Class<?> type) {
+            BeanPlan.Property[] properties = BeanPlan.of(type).getProperties();
+            byte[][] encoded = new byte[properties.length][];
+            for (int i = 0; i < properties.length; i++) {
+                encoded[i] = JsonWriter.encodeName(properties[i].getName());
+            }
+            return encoded;
+        }
+    };
+    
+    private static final ThreadCache<JsonSerializer> serializers = new ThreadCache<>();
+    
+    private final JsonWriter writer = new JsonWriter();
+    
+    
+    private JsonSerializer() {
+        
+    }
+    
+    
+    /**
+     * Returns a serializer for the current thread. If the thread's 
+     * serializer is already in use (serialize was called from a getter that
+     * is being serialized), a new one is returned.
+     * @return a serializer ready to be used.
+     */
+    static JsonSerializer acquire() {
+        JsonSerializer serializer = serializers.take();
+        return serializer != null ? serializer : new JsonSerializer();
+    }
+    
+    
+    /**
+     * Returns this serializer to its thread, so it can be used again.
+     */
+    void release() {
+        writer.reset(null);
+        serializers.put(this);
+    }
+    
+    
+    /**
+     * Lets go of the serializers of all the threads, so the application 
+     * can be unloaded. Serializers are not reused afterwards.
+     */
+    static void shutdown() {
+        serializers.close();
+    }
+    
+    
+    /**
+     * @return the writer used by this serializer.
+     */
+    JsonWriter getWriter() {
+        return writer;
+    }
+    
+    
+    /**
+     * Serializes a value into a stream. The stream is not flushed nor closed.
+     * @param value the value to serialize.
+     * @param out the target stream.
+     * @throws ServerException if a property cannot be read or there are 
+     *         circular references.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void serialize(Object value, OutputStream out) throws ServerException, IOException {
+        JsonSerializer serializer = acquire();
+        try {
+            serializer.writer.reset(out);
+            serializer.write(value, 0);
+            serializer.writer.drain();
+        }
+        finally {
+            serializer.release();
+        }
+    }
+    
+    
+    /**
+     * Writes a value into this serializer's writer.
+     * @param value the value to write.
+     * @param depth the current nesting level.
+     * @throws ServerException if a property cannot be read or there are 
+     *         circular references.
+     * @throws IOException if an I/O error occurs.
+     */
+    void write(Object value, int depth) throws ServerException, IOException {
+        
+        if (value == null) {
+            writer.writeNull();
+        }
+        else if (value instanceof String) {
+            writer.writeString((String) value);
+        }
+        else if (value instanceof Number) {
+            writeNumber((Number) value);
+        }
+        else if (value instanceof Boolean) {
+            writer.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof CharSequence || value instanceof Character) {
+            writer.writeString(value.toString());
+        }
+        else if (value instanceof Enum) {
+            writer.writeString(((Enum) value).name());
+        }
+        else if (value instanceof Date) {
+            writer.writeLong(((Date) value).getTime());
+        }
+        else if (value instanceof Calendar) {
+            writer.writeLong(((Calendar) value).getTimeInMillis());
+        }
+        else {
+            if (depth >= MaxDepth) {
+                throw new ServerException(
+                    "JsonSerializer: Maximum nesting level reached, \"" 
+                  + value.getClass().getName() + "\" may contain a circular reference.");
+            }
+            
+            if (value instanceof Map) {
+                writeMap((Map<?, ?>) value, depth + 1);
+            }
+            else if (value instanceof Iterable) {
+                writeIterable((Iterable<?>) value, depth + 1);
+            }
+            else if (value.getClass().isArray()) {
+                writeArray(value, depth + 1);
+            }
+            else {
+                writeBean(value, depth + 1);
+            }
+        }
+        
+    }
+    
+    
+    private void writeNumber(Number n) throws IOException {
+        if (n instanceof Integer || n instanceof Long || n instanceof Short 
+            || n instanceof Byte || n instanceof AtomicInteger || n instanceof AtomicLong) {
+            writer.writeLong(n.longValue());
+        }
+        else if (n instanceof Double) {
+            writer.writeDouble(n.doubleValue());
+        }
+        else if (n instanceof Float) {
+            float f = n.floatValue();
+            if (Float.isNaN(f) || Float.isInfinite(f)) {
+                writer.writeNull();
+            }
+            else {
+                writer.writeAscii(Float.toString(f));
+            }
+        }
+        else if (n instanceof BigDecimal || n instanceof BigInteger) {
+            writer.writeAscii(n.toString());
+        }
+        else {
+            writer.writeDouble(n.doubleValue());
+        }
+    }
+    
+    
+    private void writeMap(Map<?, ?> map, int depth) throws ServerException, IOException {
+        writer.write((byte) '{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!first) {
+                writer.write((byte) ',');
+            }
+            first = false;
+            writer.writeString(String.valueOf(entry.getKey()));
+            writer.write((byte) ':');
+            write(entry.getValue(), depth);
+        }
+        writer.write((byte) '}');
+    }
+    
+    
+    private void writeIterable(Iterable<?> iterable, int depth) throws ServerException, IOException {
+        writer.write((byte) '[');
+        boolean first = true;
+        for (Object o : iterable) {
+            if (!first) {
+                writer.write((byte) ',');
+            }
+            first = false;
+            write(o, depth);
+        }
+        writer.write((byte) ']');
+    }
+    
+    
+    private void writeArray(Object array, int depth) throws ServerException, IOException {
+        writer.write((byte) '[');
+        
+        // Primitive arrays are written without boxing their elements.
+        if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                writer.writeLong(a[i]);
+            }
+        }
+        else if (array instanceof long[]) {
+            long[] a = (long[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                writer.writeLong(a[i]);
+            }
+        }
+        else if (array instanceof double[]) {
+            double[] a = (double[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                writer.writeDouble(a[i]);
+            }
+        }
+        else if (array instanceof boolean[]) {
+            boolean[] a = (boolean[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                writer.writeBoolean(a[i]);
+            }
+        }
+        else if (array instanceof Object[]) {
+            Object[] a = (Object[]) array;
+            for (int i = 0; i < a.length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                write(a[i], depth);
+            }
+        }
+        // byte[], short[], char[] and float[]
+        else {
+            int length = Array.getLength(array);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                write(Array.get(array, i), depth);
+            }
+        }
+        
+        writer.write((byte) ']');
+    }
+    
+    
+    private void writeBean(Object bean, int depth) throws ServerException, IOException {
+        Class<?> type = bean.getClass();
+        BeanPlan.Property[] properties = BeanPlan.of(type).getProperties();
+        byte[][] encodedNames = names.get(type);
+        
+        writer.write((byte) '{');
+        for (int i = 0; i < properties.length; i++) {
+            if (i > 0) {
+                writer.write((byte) ',');
+            }
+            writer.write(encodedNames[i]);
+            write(properties[i].get(bean), depth);
+        }
+        writer.write((byte) '}');
+    }
+    
+}
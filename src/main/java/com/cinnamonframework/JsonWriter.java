@@ -0,0 +1,355 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A UTF-8 JSON writer that encodes straight into a reusable byte buffer. 
+ * Characters are escaped and encoded in a single pass, so no intermediate
+ * Strings are created. The buffer is only handed to the underlying stream
+ * when it fills up or when the writer is flushed.
+ * 
+ * Instances are not thread-safe; they are meant to be reused by a single 
+ * thread, resetting them with a new target stream every time.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class JsonWriter {
+    
+    static final int BufferSize = 8192;
+    
+    private static final byte[] Hex = {
+        '0', '1', '2', '3', '4', '5', '6', '7', 
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    
+    private static final byte[] Null = { 'n', 'u', 'l', 'l' };
+    private static final byte[] True = { 't', 'r', 'u', 'e' };
+    private static final byte[] False = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] MinLong = "-9223372036854775808".getBytes();
+    
+    private final byte[] buffer;
+    private int count = 0;
+    private boolean flushed = false;
+    private OutputStream out;
+    
+    
+    JsonWriter() {
+        this(BufferSize);
+    }
+    
+    JsonWriter(int size) {
+        buffer = new byte[size];
+    }
+    
+    
+    /**
+     * Discards any buffered content and sets a new target stream.
+     * @param out the stream to write to.
+     */
+    void reset(OutputStream out) {
+        this.out = out;
+        this.count = 0;
+        this.flushed = false;
+    }
+    
+    
+    /**
+     * @return the number of bytes currently held in the buffer.
+     */
+    int size() {
+        return count;
+    }
+    
+    
+    /**
+     * @return true if any content has been handed to the underlying stream
+     *         since the last reset.
+     */
+    boolean isFlushed() {
+        return flushed;
+    }
+    
+    
+    /**
+     * Hands all buffered bytes to the underlying stream without flushing
+     * the stream itself.
+     * @throws IOException if an I/O error occurs.
+     */
+    void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+            flushed = true;
+        }
+    }
+    
+    
+    /**
+     * Hands all buffered bytes to the underlying stream and flushes it.
+     * @throws IOException if an I/O error occurs.
+     */
+    void flush() throws IOException {
+        drain();
+        out.flush();
+        flushed = true;
+    }
+    
+    
+    private void ensure(int n) throws IOException {
+        if (count + n > buffer.length) {
+            drain();
+        }
+    }
+    
+    
+    void write(byte b) throws IOException {
+        ensure(1);
+        buffer[count++] = b;
+    }
+    
+    
+    void write(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length) {
+            drain();
+            out.write(bytes);
+            flushed = true;
+            return;
+        }
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+    
+    
+    void writeNull() throws IOException {
+        write(Null);
+    }
+    
+    
+    void writeBoolean(boolean b) throws IOException {
+        write(b ? True : False);
+    }
+    
+    
+    /**
+     * Writes a long value without creating an intermediate String.
+     * @param l the value to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeLong(long l) throws IOException {
+        if (l == Long.MIN_VALUE) {
+            write(MinLong);
+            return;
+        }
+        
+        ensure(20);
+        if (l < 0) {
+            buffer[count++] = '-';
+            l = -l;
+        }
+        
+        // Write the digits backwards and then move the position forward.
+        int digits = 1;
+        for (long n = l / 10; n > 0; n /= 10) {
+            digits++;
+        }
+        int pos = count + digits;
+        do {
+            buffer[--pos] = (byte) ('0' + (l % 10));
+            l /= 10;
+        } while (l > 0);
+        count += digits;
+    }
+    
+    
+    /**
+     * Writes a double value. JSON does not support NaN or infinite values, 
+     * so they are written as null.
+     * @param d the value to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeDouble(double d) throws IOException {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            writeNull();
+        }
+        else if (d == (long) d && Math.abs(d) < 1e15) {
+            writeLong((long) d);
+        }
+        else {
+            writeAscii(Double.toString(d));
+        }
+    }
+    
+    
+    /**
+     * Writes a string that is known to contain only ASCII characters that
+     * do not need to be escaped, like a number representation.
+     * @param s the string to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeAscii(String s) throws IOException {
+        int length = s.length();
+        if (length > buffer.length) {
+            for (int i = 0; i < length; i++) {
+                write((byte) s.charAt(i));
+            }
+            return;
+        }
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+    
+    
+    /**
+     * Writes a quoted, escaped and UTF-8 encoded string.
+     * @param s the string to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeString(CharSequence s) throws IOException {
+        write((byte) '"');
+        writeEscaped(s);
+        write((byte) '"');
+    }
+    
+    
+    /**
+     * Writes an escaped and UTF-8 encoded string, without quotes.
+     * @param s the string to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeEscaped(CharSequence s) throws IOException {
+        encode(s, 0, s.length(), true);
+    }
+    
+    
+    /**
+     * Writes a UTF-8 encoded portion of a string, with no JSON escaping.
+     * @param s the string to write.
+     * @param start the index of the first char to write.
+     * @param end the index after the last char to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeUtf8(CharSequence s, int start, int end) throws IOException {
+        encode(s, start, end, false);
+    }
+    
+    
+    private void encode(CharSequence s, int start, int end, boolean escape) throws IOException {
+        
+        for (int i = start; i < end; i++) {
+            
+            // Worst cases are an escaped control char, \u001f, and a 
+            // surrogate pair; both need 6 bytes or less.
+            if (count + 6 > buffer.length) {
+                drain();
+            }
+            
+            char c = s.charAt(i);
+            
+            if (c < 0x80) {
+                if (!escape || (c >= 0x20 && c != '"' && c != '\\')) {
+                    buffer[count++] = (byte) c;
+                }
+                else {
+                    buffer[count++] = '\\';
+                    switch (c) {
+                        case '"': buffer[count++] = '"'; break;
+                        case '\\': buffer[count++] = '\\'; break;
+                        case '\n': buffer[count++] = 'n'; break;
+                        case '\r': buffer[count++] = 'r'; break;
+                        case '\t': buffer[count++] = 't'; break;
+                        case '\b': buffer[count++] = 'b'; break;
+                        case '\f': buffer[count++] = 'f'; break;
+                        default:
+                            buffer[count++] = 'u';
+                            buffer[count++] = '0';
+                            buffer[count++] = '0';
+                            buffer[count++] = Hex[c >> 4];
+                            buffer[count++] = Hex[c & 0xf];
+                    }
+                }
+            }
+            else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < end 
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[count++] = (byte) (0xf0 | (cp >> 18));
+                buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                // A lone surrogate cannot be encoded, use the replacement
+                // character instead: U+FFFD.
+                buffer[count++] = (byte) 0xef;
+                buffer[count++] = (byte) 0xbf;
+                buffer[count++] = (byte) 0xbd;
+            }
+            else {
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Returns the UTF-8 encoded representation of an object property name,
+     * including its quotes and the colon that follows it: "name":
+     * @param name the property name.
+     * @return the encoded property name.
+     */
+    static byte[] encodeName(String name) {
+        JsonWriter writer = new JsonWriter(name.length() * 6 + 3);
+        try {
+            writer.writeString(name);
+            writer.write((byte) ':');
+        }
+        catch (IOException e) {
+            // Cannot happen, the buffer is large enough to hold the name.
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = new byte[writer.count];
+        System.arraycopy(writer.buffer, 0, bytes, 0, writer.count);
+        return bytes;
+    }
+    
+}
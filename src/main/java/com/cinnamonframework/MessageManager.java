@@ -0,0 +1,221 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.text.MessageFormat;
+import java.util.ListResourceBundle;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves localized messages from a resource bundle. Bundles are looked
+ * up once per locale, and message patterns are compiled into a 
+ * MessageFormat only once per bundle and key; every use formats with its
+ * own copy, since MessageFormat is not thread safe.
+ * 
+ * Compiled patterns are kept per bundle locale, so their number is bound
+ * by the bundle files. Request locales, which come from the client, only
+ * remember their bundle up to MaxLocales of them; the rest look it up in 
+ * every use. Messages are formatted in the locale of their bundle.
+ * 
+ * A message that is not in the bundle, or a missing bundle, resolves to
+ * the key itself, so applications without a bundle keep working.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class MessageManager {
+    
+    /**
+     * Stands for a locale without bundle, since concurrent maps do not 
+     * accept null values.
+     */
+    private static final ResourceBundle NoBundle = new ListResourceBundle() {
+        @Override
+        protected Object[][] getContents() {
+            return new Object[0][];
+        }
+    };
+    
+    /**
+     * The number of request locales whose bundle is remembered.
+     */
+    private static final int MaxLocales = 64;
+    
+    private final String bundleName;
+    private final ClassLoader classLoader;
+    private final ConcurrentMap<Locale, Localized> bundles = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Locale, Localized> locales = new ConcurrentHashMap<>();
+    
+    
+    /**
+     * @param bundleName the resource bundle base name, like "messages" for
+     *        messages.properties, messages_es.properties and so on; null or 
+     *        empty to use the keys as messages.
+     * @param classLoader used to find the bundles.
+     */
+    MessageManager(String bundleName, ClassLoader classLoader) {
+        this.bundleName = bundleName == null || bundleName.isEmpty() ? null : bundleName;
+        this.classLoader = classLoader;
+    }
+    
+    
+    /**
+     * @param locale
+     * @param key
+     * @return the message for the given key, or the key if it's not found.
+     */
+    String getString(Locale locale, String key) {
+        if (bundleName == null)
+            return key;
+        return localized(locale).getString(key);
+    }
+    
+    
+    /**
+     * Formats the message for the given key with MessageFormat.
+     * @param locale
+     * @param key
+     * @param arguments
+     * @return the formatted message, the key if it's not found, or the 
+     *         message as is if it is not a valid pattern.
+     */
+    String format(Locale locale, String key, Object... arguments) {
+        Localized localized = localized(locale);
+        
+        MessageFormat format = localized.formats.get(key);
+        if (format == null) {
+            String pattern = bundleName == null ? key : localized.find(key);
+            if (pattern == null)
+                return key;
+            
+            try {
+                format = new MessageFormat(pattern, localized.locale);
+            }
+            catch (IllegalArgumentException e) {
+                Logger.getLogger(MessageManager.class.getName()).log(Level.FINE, 
+                    "Invalid message pattern for " + key, e);
+                return pattern;
+            }
+            
+            MessageFormat existing = localized.formats.putIfAbsent(key, format);
+            if (existing != null) {
+                format = existing;
+            }
+        }
+        
+        return ((MessageFormat) format.clone()).format(arguments);
+    }
+    
+    
+    private Localized localized(Locale locale) {
+        if (locale == null) {
+            locale = Locale.getDefault();
+        }
+        
+        Localized localized = locales.get(locale);
+        if (localized == null) {
+            ResourceBundle bundle = loadBundle(locale);
+            Locale bundleLocale = bundle.getLocale() == null ? Locale.ROOT : bundle.getLocale();
+            
+            localized = bundles.get(bundleLocale);
+            if (localized == null) {
+                localized = new Localized(bundleLocale, bundle);
+                Localized existing = bundles.putIfAbsent(bundleLocale, localized);
+                if (existing != null) {
+                    localized = existing;
+                }
+            }
+            
+            // The size is approximate under contention, which is enough to
+            // keep the map from growing with every locale a client sends.
+            if (locales.size() < MaxLocales) {
+                locales.putIfAbsent(locale, localized);
+            }
+        }
+        return localized;
+    }
+    
+    
+    private ResourceBundle loadBundle(Locale locale) {
+        if (bundleName == null)
+            return NoBundle;
+        
+        try {
+            return ResourceBundle.getBundle(bundleName, locale, classLoader);
+        }
+        catch (MissingResourceException e) {
+            return NoBundle;
+        }
+    }
+    
+    
+    /**
+     * The bundle and the compiled patterns of a locale.
+     */
+    private static final class Localized {
+        
+        final Locale locale;
+        final ResourceBundle bundle;
+        final ConcurrentMap<String, MessageFormat> formats = new ConcurrentHashMap<>();
+        
+        Localized(Locale locale, ResourceBundle bundle) {
+            this.locale = locale;
+            this.bundle = bundle;
+        }
+        
+        String getString(String key) {
+            String message = find(key);
+            return message == null ? key : message;
+        }
+        
+        /**
+         * @return the message for the given key, or null if it's not found.
+         */
+        String find(String key) {
+            if (bundle == NoBundle)
+                return null;
+            
+            try {
+                return bundle.getString(key);
+            }
+            catch (MissingResourceException e) {
+                return null;
+            }
+        }
+        
+    }
+    
+}
@@ -30,42 +30,78 @@
  */
 package com.cinnamonframework;
 
+import java.text.MessageFormat;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.ResourceBundle;
 import java.util.Set;
 
 /**
- *
+ * Messages for the user, like validation errors, by key. 
+ * 
+ * Localized messages are looked up in the bundle set with the 
+ * com.cinammonframework.messages-bundle parameter, in the locale of the 
+ * request.
+ * 
  * @author Andres Jaimes (http://andres.jaimes.net)
  */
 public class Messages implements Map<String, String> {
     
-    private final Map<String, String> messages = new HashMap<>();
-    private ResourceBundle bundle = null;
+    private final Map<String, String> messages = new CompactMap<>();
+    private MessageManager messageManager = null;
+    private Request request = null;
     
     Messages() {
         
     }
     
-    Messages(ResourceBundle bundle) {
-        this.bundle = bundle;
+    Messages(MessageManager messageManager) {
+        this.messageManager = messageManager;
+    }
+    
+    /**
+     * Sets the request whose locale is used for localized messages.
+     */
+    final void setRequest(Request request) {
+        this.request = request;
+    }
+    
+    /**
+     * Leaves these messages empty, so they can be used for another request.
+     */
+    final void reset() {
+        messages.clear();
+        request = null;
     }
     
     public void addMessage(String key, String message) {
         messages.put(key, message);
     }
     
-    public void addLocalizedMessage(String key, String message) {
-        if (bundle != null) {
-            messages.put(key, bundle.getString(message));
+    /**
+     * Adds the message found in the bundle under the given name. 
+     * @param key
+     * @param message the message name in the bundle. If it's not found, the
+     *        name itself is used.
+     * @param arguments optional values for the message placeholders, as in
+     *        MessageFormat: "File {0} is too large."
+     */
+    public void addLocalizedMessage(String key, String message, Object... arguments) {
+        if (messageManager == null) {
+            messages.put(key, arguments.length == 0 ? message : MessageFormat.format(message, arguments));
+        }
+        else if (arguments.length == 0) {
+            messages.put(key, messageManager.getString(getLocale(), message));
         }
         else {
-            messages.put(key, message);
+            messages.put(key, messageManager.format(getLocale(), message, arguments));
         }
     }
     
+    private Locale getLocale() {
+        return request != null ? request.getLocale() : null;
+    }
+    
     public String getMessage(String key) {
         return messages.get(key);
     }
@@ -111,7 +147,7 @@ public class Messages implements Map<String, String> {
 
     @Override
     public String put(String key, String value) {
-        return messages.put(key, key);
+        return messages.put(key, value);
     }
 
     @Override
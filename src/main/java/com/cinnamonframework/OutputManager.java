@@ -31,8 +31,15 @@
 package com.cinnamonframework;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -46,11 +53,24 @@ class OutputManager {
     static final String JspDirectory = "/WEB-INF/jsp/";
     static final String JspExtension = ".jsp";
     
-    static void processOutput(Result result, Controller controller,
-            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws ServerException {
+    // Request attributes used by Tomcat to send files directly.
+    private static final String SendfileSupport = "org.apache.tomcat.sendfile.support";
+    private static final String SendfileFileName = "org.apache.tomcat.sendfile.filename";
+    private static final String SendfileStart = "org.apache.tomcat.sendfile.start";
+    private static final String SendfileEnd = "org.apache.tomcat.sendfile.end";
+    
+    static void processOutput(Result result, Controller controller, 
+            TemplateManager templateManager, EventStreamManager eventStreamManager,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            RequestTimer timer) throws ServerException {
         
         // Save session values
         SessionManager.sessionToHttpSession(controller.session, httpServletRequest);
+        timer.lap(RequestTimer.Phase.Session);
+        
+        // Timing goes in a header, so it's sent before the content and 
+        // does not include rendering.
+        timer.writeHeader(httpServletResponse);
         
         // Perform a redirection
         if (result.isRedirect()) {
@@ -80,6 +100,91 @@ class OutputManager {
             
         }
         
+        // Use a compiled Cinnamon template to output content
+        else if (result.isTemplate()) {
+            httpServletResponse.setContentType(result.getContentType());
+            
+            try {
+                templateManager.render(result.getTemplate(), controller, httpServletResponse);
+            } catch (IOException ex) {
+                throw new ServerException(ex);
+            }
+            
+        }
+        
+        // Keep the connection open and send events asynchronously
+        else if (result.isEventStream()) {
+            httpServletResponse.setContentType(result.getContentType());
+            httpServletResponse.setHeader("Cache-Control", "no-cache");
+            
+            try {
+                AsyncContext asyncContext = httpServletRequest.startAsync(httpServletRequest, httpServletResponse);
+                eventStreamManager.open(result.getEventStream(), asyncContext);
+            } catch (IllegalStateException ex) {
+                throw new ServerException(
+                    "Event streams require asynchronous support, check the servlet has async-supported set to true.", ex);
+            } catch (IOException ex) {
+                throw new ServerException(ex);
+            }
+            
+        }
+        
+        // Stream records as they are read
+        else if (result.isNdjson() || result.isCsv()) {
+            httpServletResponse.setContentType(result.getContentType());
+            
+            try (OutputStream out = httpServletResponse.getOutputStream()) {
+                if (result.isCsv()) {
+                    RecordWriter.writeCsv(result.getRecords(), out);
+                }
+                else {
+                    RecordWriter.writeNdjson(result.getRecords(), out);
+                }
+            } catch (IOException ex) {
+                throw new ServerException(ex);
+            }
+            
+        }
+        
+        // Write pre-encoded content directly, no char to byte conversion
+        // is needed and the length is known in advance, so the response
+        // does not have to be chunked.
+        else if (result.isBinary()) {
+            httpServletResponse.setContentType(result.getContentType());
+            
+            try {
+                writeBytes(result.getBytes(), httpServletResponse);
+            } catch (IOException ex) {
+                throw new ServerException(ex);
+            }
+            
+        }
+        
+        // Send a file, handing it to the container if it can send it by 
+        // itself.
+        else if (result.isFile()) {
+            httpServletResponse.setContentType(result.getContentType());
+            
+            try {
+                writeFile(result.getFile(), httpServletRequest, httpServletResponse);
+            } catch (IOException ex) {
+                throw new ServerException(ex);
+            }
+            
+        }
+        
+        // Serialize a value as JSON, straight into the output stream
+        else if (result.isJson()) {
+            httpServletResponse.setContentType(result.getContentType());
+            
+            try {
+                writeJson(result.getJson(), httpServletResponse);
+            } catch (IOException ex) {
+                throw new ServerException(ex);
+            }
+            
+        }
+        
         // Write content directly 
         else {
             httpServletResponse.setContentType(result.getContentType());
@@ -98,4 +203,100 @@ class OutputManager {
     }
     
     
+    /**
+     * Sends a file, including its Content-Length header. On containers that
+     * support it (like Tomcat with sendfile enabled) the file is sent by the
+     * container directly from the file system; otherwise it's transferred
+     * through a file channel.
+     * @param file the file to send.
+     * @param httpServletRequest the request, used to find out if the 
+     *        container can send the file by itself.
+     * @param httpServletResponse the response to write to.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void writeFile(java.nio.file.Path file, HttpServletRequest httpServletRequest, 
+            HttpServletResponse httpServletResponse) throws IOException {
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            httpServletResponse.setContentLengthLong(size);
+            
+            if (Boolean.TRUE.equals(httpServletRequest.getAttribute(SendfileSupport))) {
+                httpServletRequest.setAttribute(SendfileFileName, file.toAbsolutePath().toString());
+                httpServletRequest.setAttribute(SendfileStart, 0L);
+                httpServletRequest.setAttribute(SendfileEnd, size);
+                return;
+            }
+            
+            try (OutputStream out = httpServletResponse.getOutputStream()) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, target);
+                }
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Writes a buffer into the response output stream, including its
+     * Content-Length header.
+     * @param bytes the content to write, from its position to its limit.
+     * @param httpServletResponse the response to write to.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void writeBytes(ByteBuffer bytes, HttpServletResponse httpServletResponse) throws IOException {
+        
+        httpServletResponse.setContentLength(bytes.remaining());
+        
+        try (OutputStream out = httpServletResponse.getOutputStream()) {
+            if (bytes.hasArray()) {
+                out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            }
+            // Direct buffers (like memory mapped files) do not have a 
+            // backing array.
+            else {
+                WritableByteChannel channel = Channels.newChannel(out);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            out.flush();
+        }
+        
+    }
+    
+    
+    /**
+     * Serializes a value as JSON into the response output stream. If the
+     * whole document fits in the serializer's buffer, its Content-Length 
+     * header is sent too.
+     * @param value the value to serialize.
+     * @param httpServletResponse the response to write to.
+     * @throws ServerException if the value cannot be serialized.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void writeJson(Object value, HttpServletResponse httpServletResponse) throws ServerException, IOException {
+        
+        JsonSerializer serializer = JsonSerializer.acquire();
+        
+        try (OutputStream out = httpServletResponse.getOutputStream()) {
+            JsonWriter writer = serializer.getWriter();
+            writer.reset(out);
+            serializer.write(value, 0);
+            
+            if (!writer.isFlushed()) {
+                httpServletResponse.setContentLength(writer.size());
+            }
+            writer.flush();
+        }
+        finally {
+            serializer.release();
+        }
+        
+    }
+    
+    
 }
@@ -30,33 +30,79 @@
  */
 package com.cinnamonframework;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import org.w3c.dom.DOMException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
- *
+ * Base class for application settings stored in an xml file. Subclasses
+ * declare a setter and a getter for every property, and every element in
+ * the file calls the corresponding setter:
+ * 
+ *     &lt;properties&gt;
+ *       &lt;CacheSize type="int" value="1000" /&gt;
+ *     &lt;/properties&gt;
+ * 
+ * calls setCacheSize(1000).
+ * 
+ * Values are read when load() is called, not by the constructor: a 
+ * constructor runs before the field initializers of its subclasses, which
+ * would overwrite the loaded values. Create the object first and then load
+ * it:
+ * 
+ *     AppProperties properties = new AppProperties("app.xml");
+ *     properties.load();
+ * 
+ * Calling watch() reloads the file every time it changes. A reloaded file
+ * is parsed and validated first; if it's correct, its values are set and 
+ * published as a new immutable snapshot that can be read with get() 
+ * without locking. Otherwise, the current values are kept. Subclasses
+ * that are read while being watched should declare their fields volatile.
+ * 
  * @author Andres Jaimes (http://andres.jaimes.net)
  */
 public class Properties {
@@ -69,121 +115,435 @@ public class Properties {
     private final String attributeType = "type";
     private final String attributeValue = "value";
     
+    /**
+     * Time to wait for an editor to finish writing the file before reloading
+     * it, in milliseconds.
+     */
+    private static final long ReloadDelay = 100;
+    
+    private static final XMLInputFactory InputFactory = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OutputFactory = XMLOutputFactory.newInstance();
+    
+    static {
+        // Configuration files do not need DTDs or external entities.
+        InputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        InputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+    
+    private static final MethodType SetterType = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType GetterType = MethodType.methodType(Object.class, Object.class);
+    
+    private static final ClassValue<Plan> plans = new ClassValue<Plan>() {
+        @Override
+        protected Plan computeValue(Class<?> type) {
+            return new Plan(type);
+        }
+    };
+    
+    /**
+     * The values read from the file. It's replaced, never modified.
+     */
+    private volatile Map<String, Object> snapshot = Collections.emptyMap();
+    
+    private final ConcurrentMap<String, List<PropertyListener>> listeners = 
+        new ConcurrentHashMap<>();
+    
+    private final Object reloadLock = new Object();
+    private long loadedModified;
+    private long loadedLength;
+    private boolean loaded;
+    
+    private Thread watcher;
+    private WatchService watchService;
+    
     /** 
-     * Creates a new instance of a Properties class. 
-     * This instance will automatically populate its values from the specified
-     * xml file.
+     * Creates a new instance of a Properties class. Its values are read 
+     * from the specified xml file by load().
      * @param fileName The Properties file name with an optional path.
      */    
     public Properties(String fileName) {
-        file = new File(fileName);
-        load();
+        file = new File(fileName).getAbsoluteFile();
     }
     
     /**
      * Looks for the corresponding file name and initializes properties values
-     * from it.
+     * from it. Must be called after the object is fully constructed; see 
+     * the class description.
      * If the file is not found or any other error happens, then properties
      * will use their default values.
+     * @return true if the file was read.
+     */
+    public boolean load() {
+        
+        synchronized (reloadLock) {
+            Map<String, Object> values = read(new ArrayList<String>());
+            if (values != null) {
+                apply(values);
+            }
+            return values != null;
+        }
+        
+    }
+    
+    
+    /**
+     * Reads the file again and, if it's valid, sets and publishes its 
+     * values. Properties whose value changed are reported to their 
+     * listeners.
+     * @return true if the file was reloaded, false if it was missing or 
+     *         invalid and the current values were kept.
      */
-    private void load() {
+    public boolean reload() {
         
-        if (file.exists()) {
+        synchronized (reloadLock) {
+            List<String> errors = new ArrayList<>();
+            Map<String, Object> values = read(errors);
             
-            try {
-                DocumentBuilder db = 
-                    DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            if (values == null) {
+                return false;
+            }
+            if (!errors.isEmpty()) {
+                Logger.getLogger(Properties.class.getName()).log(Level.WARNING, 
+                    "{0} was not reloaded, invalid properties: {1}", 
+                    new Object[] { file, errors });
+                return false;
+            }
+            
+            Map<String, Object> merged = new LinkedHashMap<>(snapshot);
+            merged.putAll(values);
+            if (!validate(Collections.unmodifiableMap(merged))) {
+                Logger.getLogger(Properties.class.getName()).log(Level.WARNING, 
+                    "{0} was not reloaded, it did not pass validation.", file);
+                return false;
+            }
+            
+            Map<String, Object> previous = snapshot;
+            apply(values);
             
-                Document doc = db.parse(file);
-                if (doc.hasChildNodes()) {
-                    populate(doc.getChildNodes());
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                Object oldValue = previous.get(entry.getKey());
+                if (!Objects.equals(oldValue, entry.getValue())) {
+                    notify(entry.getKey(), oldValue, entry.getValue());
                 }
             }
-            // if there's any problem loading the configuration file, 
-            // just go ahead with the default values
-            catch (ParserConfigurationException | SAXException | IOException ex) {
-                Logger.getLogger(Properties.class.getName()).log(Level.WARNING, null, ex);
+            return true;
+        }
+        
+    }
+    
+    
+    /**
+     * Lets subclasses check a reloaded file before its values are used; for
+     * example, to reject negative sizes. The default implementation accepts
+     * every file.
+     * @param values every property, including those that are not in the 
+     *        reloaded file and keep their previous value.
+     * @return true to use the reloaded values, false to keep the current
+     *         ones.
+     */
+    protected boolean validate(Map<String, Object> values) {
+        return true;
+    }
+    
+    
+    /**
+     * Returns the current value of a property without locking.
+     * @param name the property name, as it appears in the file.
+     * @return the property value or null if it's not in the file.
+     */
+    public Object get(String name) {
+        return snapshot.get(name);
+    }
+    
+    
+    /**
+     * @return an immutable map with the current value of every property
+     *         in the file. Later reloads do not change it.
+     */
+    public Map<String, Object> getSnapshot() {
+        return snapshot;
+    }
+    
+    
+    /**
+     * Registers a listener to be called every time a reload changes the
+     * value of the given property.
+     * @param name the property name, as it appears in the file.
+     * @param listener
+     */
+    public void addListener(String name, PropertyListener listener) {
+        if (name == null || listener == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        List<PropertyListener> list = listeners.get(name);
+        if (list == null) {
+            list = new CopyOnWriteArrayList<>();
+            List<PropertyListener> existing = listeners.putIfAbsent(name, list);
+            if (existing != null) {
+                list = existing;
             }
         }
+        list.add(listener);
+    }
+    
+    
+    /**
+     * @param name the property name, as it appears in the file.
+     * @param listener 
+     */
+    public void removeListener(String name, PropertyListener listener) {
+        List<PropertyListener> list = listeners.get(name);
+        if (list != null) {
+            list.remove(listener);
+        }
+    }
+    
+    
+    /**
+     * Starts reloading the file every time it's modified. Changes are 
+     * detected by a background thread until close() is called.
+     * @throws IOException if the file's directory cannot be watched.
+     */
+    public synchronized void watch() throws IOException {
+        
+        if (watcher != null)
+            return;
         
+        final Path directory = file.getParentFile().toPath();
+        final Path name = file.toPath().getFileName();
+        
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, 
+            StandardWatchEventKinds.ENTRY_CREATE, 
+            StandardWatchEventKinds.ENTRY_MODIFY);
+        
+        final WatchService service = watchService;
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(service, name);
+            }
+        }, "cinnamon-properties-" + name);
+        watcher.setDaemon(true);
+        watcher.start();
     }
     
+    
     /**
-     * Populates all properties by using reflexion.
-     * @param nodeList 
+     * Stops watching the file.
      */
-    private void populate(NodeList nodeList) {
+    public synchronized void close() {
         
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            
-            Node node = nodeList.item(i);
-            
-            if (node.getNodeType() == Node.ELEMENT_NODE) {
+        if (watcher == null)
+            return;
+        
+        try {
+            watchService.close();
+        }
+        catch (IOException e) {
+            Logger.getLogger(Properties.class.getName()).log(Level.WARNING, null, e);
+        }
+        watcher.interrupt();
+        watcher = null;
+        watchService = null;
+    }
+    
+    
+    private void watch(WatchService service, Path name) {
+        
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = isChanged(key, name);
                 
-                Element element = (Element) node;
-                String setter = "set" + node.getNodeName();
-                String type = element.getAttribute(attributeType);
-                String value = element.getAttribute(attributeValue);
+                // Editors usually write a file in several steps; wait until
+                // they finish and reload only once.
+                while (changed && (key = service.poll(ReloadDelay, TimeUnit.MILLISECONDS)) != null) {
+                    isChanged(key, name);
+                }
                 
-                // Look for an appropiate setter.
-                Method method = findSetter(setter, type);
-                if (method != null) {
-                    try {
-                        // Call the setter.
-                        method.setAccessible(true);
-                        method.invoke(this, toObject(type, value));
+                if (changed && isModified()) {
+                    reload();
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // close() was called.
+        }
+        
+    }
+    
+    
+    /**
+     * @return true if any of the key's events refers to the given name.
+     */
+    private static boolean isChanged(WatchKey key, Path name) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW 
+                || name.equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+    
+    
+    /**
+     * @return true if the file is not the one loaded last time.
+     */
+    private boolean isModified() {
+        synchronized (reloadLock) {
+            return file.lastModified() != loadedModified 
+                || file.length() != loadedLength;
+        }
+    }
+    
+    
+    private void notify(String name, Object oldValue, Object newValue) {
+        List<PropertyListener> list = listeners.get(name);
+        if (list == null)
+            return;
+        
+        for (PropertyListener listener : list) {
+            try {
+                listener.propertyChanged(name, oldValue, newValue);
+            }
+            catch (RuntimeException e) {
+                Logger.getLogger(Properties.class.getName()).log(Level.WARNING, null, e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Parses the file.
+     * @param errors receives the name of every property that could not be 
+     *        converted to its type or has no setter.
+     * @return the valid properties by name, or null if the file does not 
+     *         exist or cannot be parsed.
+     */
+    private Map<String, Object> read(List<String> errors) {
+        
+        if (!file.exists()) 
+            return null;
+        
+        long modified = file.lastModified();
+        long length = file.length();
+        Plan plan = plans.get(getClass());
+        Map<String, Object> values = new LinkedHashMap<>();
+        
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            XMLStreamReader reader = InputFactory.createXMLStreamReader(in);
+            try {
+                // Properties are the elements inside the root element.
+                int depth = 0;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        depth++;
+                        if (depth == 2) {
+                            read(reader, plan, values, errors);
+                        }
                     }
-                    catch (SecurityException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-                        // If it finds a problem, ignore and use the default value
+                    else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
                     }
                 }
-                
+            }
+            finally {
+                reader.close();
             }
             
+            loadedModified = modified;
+            loadedLength = length;
+            return values;
+        }
+        // if there's any problem loading the configuration file, 
+        // just go ahead with the default values
+        catch (XMLStreamException | IOException ex) {
+            Logger.getLogger(Properties.class.getName()).log(Level.WARNING, null, ex);
+            return null;
         }
         
     }
-
+    
     /**
-     * Uses reflection to find an appropriate method setter.
-     * @param setter The setter name to look for, ie: "setId"
-     * @param type The type of the setter parameter, ie: "double"
-     * @return a Method referencing the setter or null if not found.
+     * Reads the property the reader is positioned at and checks it has a 
+     * setter.
      */
-    private Method findSetter(String setter, String type) {
-        // Get reference to current type
-        Class thisClass = this.getClass();
+    private void read(XMLStreamReader reader, Plan plan, Map<String, Object> values, List<String> errors) {
         
-        Method method = null;
+        String name = reader.getLocalName();
+        String type = reader.getAttributeValue(null, attributeType);
+        Object value = toObject(type == null ? "" : type, reader.getAttributeValue(null, attributeValue));
         
-        try {
-            switch (type) {
-                case "boolean": 
-                    method = thisClass.getDeclaredMethod(setter, boolean.class); break;
-                case "byte": 
-                    method = thisClass.getDeclaredMethod(setter, byte.class); break;            
-                case "date": 
-                    method = thisClass.getDeclaredMethod(setter, Date.class); break;
-                case "double": 
-                    method = thisClass.getDeclaredMethod(setter, double.class); break;                
-                case "float": 
-                    method = thisClass.getDeclaredMethod(setter, float.class); break;
-                case "int": 
-                    method = thisClass.getDeclaredMethod(setter, int.class); break;
-                case "long": 
-                    method = thisClass.getDeclaredMethod(setter, long.class); break;
-                case "short": 
-                    method = thisClass.getDeclaredMethod(setter, short.class); break;
-                case "String": 
-                    method = thisClass.getDeclaredMethod(setter, String.class); break;
-            }
+        if (value != null && plan.getSetter(name, type) != null) {
+            values.put(name, value);
         }
-        catch (NoSuchMethodException ex) {
-            // If not found, then we'll return null
+        else {
+            errors.add(name);
+        }
+        
+    }
+    
+    /**
+     * Calls the setter of every property and publishes the new snapshot.
+     * Properties that are no longer in the file keep their previous value.
+     * @param values 
+     */
+    private void apply(Map<String, Object> values) {
+        
+        Plan plan = plans.get(getClass());
+        
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            
+            MethodHandle setter = plan.getSetter(entry.getKey(), typeOf(entry.getValue()));
+            if (setter != null) {
+                try {
+                    setter.invokeExact((Object) this, entry.getValue());
+                }
+                catch (Error e) {
+                    throw e;
+                }
+                catch (Throwable e) {
+                    // If it finds a problem, ignore and use the default value
+                }
+            }
+            
         }
         
-        return method;
-    }    
+        Map<String, Object> merged = new LinkedHashMap<>(snapshot);
+        merged.putAll(values);
+        snapshot = Collections.unmodifiableMap(merged);
+        loaded = true;
+        
+    }
+    
+    /**
+     * @return the type name used in the file for the given value.
+     */
+    private static String typeOf(Object value) {
+        return value == null ? null : typeOf(value.getClass());
+    }
+    
+    /**
+     * @return the type name used in the file for the given class, or null if
+     *         the class is not supported.
+     */
+    private static String typeOf(Class<?> type) {
+        if (type == Date.class) return "date";
+        if (type == String.class) return "String";
+        if (type == boolean.class || type == Boolean.class) return "boolean";
+        if (type == byte.class || type == Byte.class) return "byte";
+        if (type == double.class || type == Double.class) return "double";
+        if (type == float.class || type == Float.class) return "float";
+        if (type == int.class || type == Integer.class) return "int";
+        if (type == long.class || type == Long.class) return "long";
+        if (type == short.class || type == Short.class) return "short";
+        return null;
+    }
     
     
     /**
@@ -195,6 +555,9 @@ public class Properties {
     private Object toObject(String type, String value) {
         Object object = null;
         
+        if (value == null)
+            return null;
+        
         try {
             switch (type) {
                 case "boolean": 
@@ -228,37 +591,135 @@ public class Properties {
     /**
      * Saves all class properties to a file. The file name to use is the one
      * specified in the constructor.
+     * Every getter of a supported type is saved as an element named after
+     * the property; for example, getCacheSize() is saved as 
+     * &lt;CacheSize type="int" value="1000" /&gt;.
+     * 
+     * An existing file is not saved until it has been loaded, so default 
+     * values never replace the values in the file. The saved file keeps 
+     * the permissions and owner of the file it replaces.
      */
     public void save() {
-        try {
-            DocumentBuilder db = 
-                DocumentBuilderFactory.newInstance().newDocumentBuilder();
-
-            Document doc = db.newDocument();
-            Element root = doc.createElement("properties");
+        
+        synchronized (reloadLock) {
+            Path target = file.toPath();
+            Path temp = null;
             
-            // Get reference to current type
-            Class thisClass = this.getClass();
+            if (!loaded && java.nio.file.Files.exists(target)) {
+                Logger.getLogger(Properties.class.getName()).log(Level.SEVERE, 
+                    "{0} was not saved, it exists and was not loaded. Call load() first.", file);
+                return;
+            }
             
-            // Iterate the getters to get the properties to save.
-            Method[] getters = thisClass.getDeclaredMethods();
-            for (Method getter : getters) {
-                if (isGetter(getter)) {
-                    getter.setAccessible(true);
-                    
-                    Element element = doc.createElement("");
-                    element.setAttribute(attributeType, getter.getReturnType().getName());
-                    element.setAttribute(attributeValue, resultToString(getter));
-                    root.appendChild(element);
+            try {
+                // Write to a temporary file first, so a watcher never reads
+                // a half written file.
+                temp = java.nio.file.Files.createTempFile(target.getParent(), ".properties", ".tmp");
+                
+                try (OutputStream out = new BufferedOutputStream(java.nio.file.Files.newOutputStream(temp))) {
+                    XMLStreamWriter writer = OutputFactory.createXMLStreamWriter(out, "utf-8");
+                    try {
+                        write(writer);
+                    }
+                    finally {
+                        writer.close();
+                    }
+                }
+                
+                // Temporary files are only readable by their owner.
+                if (java.nio.file.Files.exists(target)) {
+                    copyAttributes(target, temp);
+                }
+                
+                try {
+                    java.nio.file.Files.move(temp, target, 
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                catch (AtomicMoveNotSupportedException e) {
+                    java.nio.file.Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                
+                // What we just wrote does not need to be reloaded.
+                loadedModified = file.lastModified();
+                loadedLength = file.length();
+            }
+            catch (IOException | XMLStreamException ex) {
+                Logger.getLogger(Properties.class.getName()).log(Level.SEVERE, null, ex);
+                if (temp != null) {
+                    try {
+                        java.nio.file.Files.deleteIfExists(temp);
+                    }
+                    catch (IOException e) {
+                        Logger.getLogger(Properties.class.getName()).log(Level.WARNING, null, e);
+                    }
                 }
             }
-            
-            saveToFile(doc);
-            
         }
-        catch (ParserConfigurationException | DOMException | SecurityException ex) {
-            Logger.getLogger(Properties.class.getName()).log(Level.SEVERE, null, ex);
+        
+    }
+    
+    
+    /**
+     * Copies the permissions, owner and group (or access control list) of a
+     * file. An owner that cannot be changed, which requires privileges, is
+     * kept.
+     */
+    private static void copyAttributes(Path source, Path target) throws IOException {
+        
+        PosixFileAttributeView posix = java.nio.file.Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        if (posix != null) {
+            PosixFileAttributes attributes = posix.readAttributes();
+            PosixFileAttributeView view = java.nio.file.Files.getFileAttributeView(target, PosixFileAttributeView.class);
+            view.setPermissions(attributes.permissions());
+            try {
+                view.setGroup(attributes.group());
+                view.setOwner(attributes.owner());
+            }
+            catch (IOException e) {
+                Logger.getLogger(Properties.class.getName()).log(Level.FINE, 
+                    "Cannot keep the owner of " + source, e);
+            }
+            return;
+        }
+        
+        AclFileAttributeView acl = java.nio.file.Files.getFileAttributeView(source, AclFileAttributeView.class);
+        if (acl != null) {
+            java.nio.file.Files.getFileAttributeView(target, AclFileAttributeView.class).setAcl(acl.getAcl());
+        }
+        
+    }
+    
+    
+    private void write(XMLStreamWriter writer) throws XMLStreamException {
+        
+        writer.writeStartDocument("utf-8", "1.0");
+        writer.writeCharacters("\n");
+        writer.writeStartElement("properties");
+        
+        for (Accessor getter : plans.get(getClass()).getGetters()) {
+            try {
+                Object value = getter.handle.invokeExact((Object) this);
+                
+                writer.writeCharacters("\n  ");
+                writer.writeEmptyElement(getter.name);
+                writer.writeAttribute(attributeType, getter.type);
+                writer.writeAttribute(attributeValue, toString(value));
+            }
+            catch (XMLStreamException | Error e) {
+                throw e;
+            }
+            catch (Throwable e) {
+                // A getter that fails is not saved.
+                Logger.getLogger(Properties.class.getName()).log(Level.WARNING, 
+                    "Cannot read property " + getter.name, e);
+            }
         }
+        
+        writer.writeCharacters("\n");
+        writer.writeEndElement();
+        writer.writeCharacters("\n");
+        writer.writeEndDocument();
+        
     }
     
     
@@ -270,63 +731,116 @@ public class Properties {
      */
     public String resultToString(Method getter) {
         
-        String s = "";
-        
         try {            
             getter.setAccessible(true);
-            
-            switch (getter.getReturnType().getName()) {
-                case "Date": 
-                    s = new SimpleDateFormat(dateFormat).format(
-                        (Date) getter.invoke(this)); break;
-                default: 
-                    s = getter.invoke(this).toString();
-            }
+            return toString(getter.invoke(this));
         }
         catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
             // return an empty string...
+            return "";
         }
         
-        return s;
     }
     
     
-    /** 
-     * Performs the actual write of the file to disk.
-     * @param doc the in-memory xml document to save.
+    /**
+     * Converts a property value into the string stored in the file.
      */
-    private void saveToFile(Document doc) {
-        try {
-            // Prepare to write the content into a file
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            DOMSource source = new DOMSource(doc);
-            StreamResult result = new StreamResult(file);
+    private String toString(Object value) {
+        if (value == null)
+            return "";
+        if (value instanceof Date)
+            return new SimpleDateFormat(dateFormat).format((Date) value);
+        return value.toString();
+    }
+    
+    
+    /**
+     * The setters and getters declared by a Properties subclass. It's built
+     * only once per class, so loading and saving do not look up methods.
+     */
+    private static final class Plan {
+        
+        /**
+         * Setters by property name and type name, like "CacheSize int".
+         */
+        private final Map<String, MethodHandle> setters = new HashMap<>();
+        
+        private final Accessor[] getters;
+        
+        Plan(Class<?> type) {
             
-            // set options for the resulting file
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+            // Sort getters by name so files are saved in the same order.
+            Map<String, Accessor> found = new TreeMap<>();
+            
+            for (Method method : type.getDeclaredMethods()) {
+                
+                String name = method.getName();
+                if (Modifier.isStatic(method.getModifiers()) || name.length() <= 3)
+                    continue;
+                
+                Class<?>[] parameters = method.getParameterTypes();
+                
+                if (name.startsWith("set") && parameters.length == 1) {
+                    String typeName = typeOf(parameters[0]);
+                    MethodHandle handle = unreflect(method, SetterType);
+                    if (typeName != null && handle != null) {
+                        setters.put(name.substring(3) + " " + typeName, handle);
+                    }
+                }
+                else if (name.startsWith("get") && parameters.length == 0) {
+                    String typeName = typeOf(method.getReturnType());
+                    MethodHandle handle = unreflect(method, GetterType);
+                    if (typeName != null && handle != null) {
+                        found.put(name.substring(3), new Accessor(name.substring(3), typeName, handle));
+                    }
+                }
+                
+            }
             
-            // and save it...
-            transformer.transform(source, result);
-        } catch (IllegalArgumentException | TransformerException ex) {
-            Logger.getLogger(Properties.class.getName()).log(Level.SEVERE, null, ex);
+            getters = found.values().toArray(new Accessor[found.size()]);
+        }
+        
+        /**
+         * @return a handle of type (Object, Object)void, or null if there's
+         *         no setter for the given property and type.
+         */
+        MethodHandle getSetter(String name, String type) {
+            return setters.get(name + " " + type);
         }
+        
+        Accessor[] getGetters() {
+            return getters;
+        }
+        
+        private static MethodHandle unreflect(Method method, MethodType type) {
+            try {
+                method.setAccessible(true);
+                return MethodHandles.lookup().unreflect(method).asType(type);
+            }
+            catch (IllegalAccessException | RuntimeException e) {
+                return null;
+            }
+        }
+        
     }
-
+    
     
     /**
-     * Checks if a given method is a getter.
-     * @param method the method to check.
-     * @return true if it is a getter, false otherwise.
+     * A getter of type (Object)Object.
      */
-    private boolean isGetter(Method method){
-        if (!method.getName().startsWith("get")) return false;
-        if (method.getParameterTypes().length != 0) return false;  
-        if (void.class.equals(method.getReturnType())) return false;
-        return true;
+    private static final class Accessor {
+        
+        final String name;
+        final String type;
+        final MethodHandle handle;
+        
+        Accessor(String name, String type, MethodHandle handle) {
+            this.name = name;
+            this.type = type;
+            this.handle = handle;
+        }
+        
     }
             
     // </editor-fold>
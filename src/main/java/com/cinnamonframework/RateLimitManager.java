@@ -0,0 +1,283 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import com.cinnamonframework.annotations.RateLimit;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Applies the RateLimit annotations of actions, using a token bucket per 
+ * client and action.
+ * 
+ * Buckets are kept in a fixed number of stripes, each one a small LRU map 
+ * with its own lock, so requests from different clients rarely wait for 
+ * each other, and memory stays bounded even when an attacker sends 
+ * requests from many different addresses: the least recently seen clients
+ * are forgotten, which gives them a full bucket on their next request.
+ * 
+ * Clients are identified by the address of the connection. The 
+ * X-Forwarded-For header, which any client can send, is used only when the
+ * connection comes from one of the configured trusted proxies; then the 
+ * client is the last address in the header that is not a trusted proxy.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class RateLimitManager {
+    
+    /**
+     * Must be a power of two.
+     */
+    static final int Stripes = 16;
+    
+    /**
+     * Clients remembered per stripe; Stripes * MaxClientsPerStripe clients
+     * are remembered per action.
+     */
+    static final int MaxClientsPerStripe = 4096;
+    
+    private final ConcurrentMap<Method, Limiter> limiters = new ConcurrentHashMap<>();
+    private final Set<String> trustedProxies;
+    
+    
+    /**
+     * @param trustedProxies a comma separated list of proxy IP addresses 
+     *        whose X-Forwarded-For headers are trusted, or null.
+     */
+    RateLimitManager(String trustedProxies) {
+        Set<String> proxies = new HashSet<>();
+        if (trustedProxies != null) {
+            for (String proxy : trustedProxies.split(",")) {
+                if (!proxy.trim().isEmpty()) {
+                    proxies.add(proxy.trim());
+                }
+            }
+        }
+        this.trustedProxies = Collections.unmodifiableSet(proxies);
+    }
+    
+    
+    /**
+     * Returns the limiter of an action. Actions of the same method share
+     * their limiter.
+     * @param type the controller class, whose RateLimit applies if the 
+     *        method does not have one.
+     * @param method the action.
+     * @return the limiter or null if the action has no rate limit.
+     */
+    Limiter getLimiter(Class<?> type, Method method) {
+        
+        RateLimit limit = method.getAnnotation(RateLimit.class);
+        if (limit == null) {
+            limit = type.getAnnotation(RateLimit.class);
+            if (limit == null) {
+                return null;
+            }
+        }
+        
+        Limiter limiter = limiters.get(method);
+        if (limiter == null) {
+            Limiter created = new Limiter(limit, method);
+            limiter = limiters.putIfAbsent(method, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+    
+    
+    /**
+     * Takes a request from the client's bucket.
+     * @param limiter the limiter of the requested action.
+     * @param instance the controller that will handle the request.
+     * @param httpServletRequest the request.
+     * @throws RequestRejectedException with status 429 if the client made 
+     *         too many requests.
+     */
+    void check(Limiter limiter, Controller instance, HttpServletRequest httpServletRequest) throws RequestRejectedException {
+        
+        long wait = limiter.acquire(key(limiter.key, instance, httpServletRequest), System.nanoTime());
+        if (wait > 0) {
+            long seconds = Math.max(1, (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+            throw new RequestRejectedException(Result.StatusCode.TooManyRequests,
+                "Too many requests to \"" + limiter.name + "\".",
+                Collections.singletonMap("Retry-After", String.valueOf(seconds)));
+        }
+        
+    }
+    
+    
+    private String key(RateLimit.Key key, Controller instance, HttpServletRequest httpServletRequest) {
+        
+        String s = null;
+        
+        if (key == RateLimit.Key.Session) {
+            HttpSession session = httpServletRequest.getSession(false);
+            if (session != null) {
+                s = session.getId();
+            }
+        }
+        else if (key == RateLimit.Key.Custom && instance instanceof RateLimitKeyProvider) {
+            s = ((RateLimitKeyProvider) instance).getRateLimitKey(httpServletRequest);
+        }
+        
+        return s != null ? s : getClientAddress(httpServletRequest);
+    }
+    
+    
+    /**
+     * Returns the client address: the connection address or, if the 
+     * connection comes from a trusted proxy, the last address in 
+     * X-Forwarded-For that is not a trusted proxy.
+     */
+    private String getClientAddress(HttpServletRequest httpServletRequest) {
+        
+        String address = httpServletRequest.getRemoteAddr();
+        if (!trustedProxies.contains(address)) {
+            return address;
+        }
+        
+        // Proxies append the address they received the request from, so
+        // the header is read from the end.
+        Enumeration<String> headers = httpServletRequest.getHeaders("X-Forwarded-For");
+        List<String> forwarded = new ArrayList<>();
+        while (headers != null && headers.hasMoreElements()) {
+            for (String s : headers.nextElement().split(",")) {
+                if (!s.trim().isEmpty()) {
+                    forwarded.add(s.trim());
+                }
+            }
+        }
+        for (int i = forwarded.size() - 1; i >= 0; i--) {
+            address = forwarded.get(i);
+            if (!trustedProxies.contains(address)) {
+                break;
+            }
+        }
+        return address;
+    }
+    
+    
+    /**
+     * The buckets of a single action.
+     */
+    static final class Limiter {
+        
+        private final RateLimit.Key key;
+        private final String name;
+        private final double capacity;
+        private final double tokensPerNano;
+        private final Stripe[] stripes = new Stripe[Stripes];
+        
+        private Limiter(RateLimit limit, Method method) {
+            int requests = limit.requests();
+            int seconds = limit.seconds();
+            if (requests < 1 || seconds < 1) {
+                throw new IllegalArgumentException("RateLimit requests and seconds must be greater than zero.");
+            }
+            key = limit.key();
+            name = method.getDeclaringClass().getName() + "." + method.getName();
+            capacity = requests;
+            tokensPerNano = requests / (double) TimeUnit.SECONDS.toNanos(seconds);
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+        
+        /**
+         * @return 0 if the request is allowed, or the nanoseconds until the
+         *         next request is allowed.
+         */
+        long acquire(String key, long now) {
+            int h = key.hashCode();
+            Stripe stripe = stripes[(h ^ (h >>> 16)) & (Stripes - 1)];
+            
+            synchronized (stripe) {
+                Bucket bucket = stripe.get(key);
+                if (bucket == null) {
+                    bucket = new Bucket(capacity, now);
+                    stripe.put(key, bucket);
+                }
+                
+                bucket.tokens = Math.min(capacity, bucket.tokens + (now - bucket.updated) * tokensPerNano);
+                bucket.updated = now;
+                
+                if (bucket.tokens >= 1) {
+                    bucket.tokens -= 1;
+                    return 0;
+                }
+                return Math.max(1, (long) ((1 - bucket.tokens) / tokensPerNano));
+            }
+        }
+        
+    }
+    
+    
+    private static final class Stripe extends LinkedHashMap<String, Bucket> {
+        
+        Stripe() {
+            super(64, 0.75f, true);
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > MaxClientsPerStripe;
+        }
+        
+    }
+    
+    
+    private static final class Bucket {
+        
+        double tokens;
+        long updated;
+        
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,313 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Streams a sequence of records as newline delimited JSON or CSV. Records
+ * are encoded one at a time into a per-thread reusable buffer and sent to
+ * the client in batches, so heap usage does not depend on the number of 
+ * records.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class RecordWriter {
+    
+    /**
+     * Number of records written between flushes. The first record is always
+     * flushed on its own so the client starts receiving data right away.
+     */
+    static final int BatchSize = 500;
+    
+    private static final byte[] CsvLineBreak = { '\r', '\n' };
+    
+    
+    private RecordWriter() {
+        
+    }
+    
+    
+    /**
+     * Writes every record as a JSON document followed by a line break.
+     * @param records the records to write.
+     * @param out the target stream.
+     * @throws ServerException if a record cannot be serialized.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void writeNdjson(Iterator<?> records, OutputStream out) throws ServerException, IOException {
+        
+        JsonSerializer serializer = JsonSerializer.acquire();
+        JsonWriter writer = serializer.getWriter();
+        Throwable failure = null;
+        
+        try {
+            writer.reset(out);
+            int n = 0;
+            while (records.hasNext()) {
+                serializer.write(records.next(), 0);
+                writer.write((byte) '\n');
+                if (++n % BatchSize == 1) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        }
+        catch (ServerException | IOException | RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        }
+        finally {
+            serializer.release();
+            close(records, failure);
+        }
+        
+    }
+    
+    
+    /**
+     * Writes records as CSV (RFC 4180) rows. A record can be an array, an
+     * iterable, a map, a bean or a single value. For maps and beans, a 
+     * header row is written using the keys or property names of the first 
+     * record.
+     * @param records the records to write.
+     * @param out the target stream.
+     * @throws ServerException if a bean property cannot be read.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void writeCsv(Iterator<?> records, OutputStream out) throws ServerException, IOException {
+        
+        JsonSerializer serializer = JsonSerializer.acquire();
+        JsonWriter writer = serializer.getWriter();
+        Throwable failure = null;
+        
+        try {
+            writer.reset(out);
+            int n = 0;
+            while (records.hasNext()) {
+                Object record = records.next();
+                if (n == 0) {
+                    writeCsvHeader(record, writer);
+                }
+                writeCsvRecord(record, writer);
+                if (++n % BatchSize == 1) {
+                    writer.flush();
+                }
+            }
+            writer.flush();
+        }
+        catch (ServerException | IOException | RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        }
+        finally {
+            serializer.release();
+            close(records, failure);
+        }
+        
+    }
+    
+    
+    private static void writeCsvHeader(Object record, JsonWriter writer) throws IOException {
+        
+        if (record instanceof Map) {
+            boolean first = true;
+            for (Object key : ((Map<?, ?>) record).keySet()) {
+                if (!first) writer.write((byte) ',');
+                first = false;
+                writeCsvCell(key, writer);
+            }
+            writer.write(CsvLineBreak);
+        }
+        else if (isBean(record)) {
+            BeanPlan.Property[] properties = BeanPlan.of(record.getClass()).getProperties();
+            for (int i = 0; i < properties.length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                writeCsvCell(properties[i].getName(), writer);
+            }
+            writer.write(CsvLineBreak);
+        }
+        
+    }
+    
+    
+    private static void writeCsvRecord(Object record, JsonWriter writer) throws ServerException, IOException {
+        
+        if (record instanceof Object[]) {
+            Object[] cells = (Object[]) record;
+            for (int i = 0; i < cells.length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                writeCsvCell(cells[i], writer);
+            }
+        }
+        else if (record != null && record.getClass().isArray()) {
+            // Arrays of primitives, like int[] or double[]
+            int length = Array.getLength(record);
+            for (int i = 0; i < length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                writeCsvCell(Array.get(record, i), writer);
+            }
+        }
+        else if (record instanceof Iterable) {
+            boolean first = true;
+            for (Object cell : (Iterable<?>) record) {
+                if (!first) writer.write((byte) ',');
+                first = false;
+                writeCsvCell(cell, writer);
+            }
+        }
+        else if (record instanceof Map) {
+            boolean first = true;
+            for (Object cell : ((Map<?, ?>) record).values()) {
+                if (!first) writer.write((byte) ',');
+                first = false;
+                writeCsvCell(cell, writer);
+            }
+        }
+        else if (isBean(record)) {
+            BeanPlan.Property[] properties = BeanPlan.of(record.getClass()).getProperties();
+            for (int i = 0; i < properties.length; i++) {
+                if (i > 0) writer.write((byte) ',');
+                writeCsvCell(properties[i].get(record), writer);
+            }
+        }
+        else {
+            writeCsvCell(record, writer);
+        }
+        
+        writer.write(CsvLineBreak);
+    }
+    
+    
+    /**
+     * Writes a single cell, quoting it only if it contains commas, quotes
+     * or line breaks.
+     */
+    private static void writeCsvCell(Object value, JsonWriter writer) throws IOException {
+        
+        if (value == null) {
+            return;
+        }
+        if (value instanceof Integer || value instanceof Long 
+            || value instanceof Short || value instanceof Byte) {
+            writer.writeLong(((Number) value).longValue());
+            return;
+        }
+        if (value instanceof Date) {
+            writer.writeLong(((Date) value).getTime());
+            return;
+        }
+        if (value instanceof Calendar) {
+            writer.writeLong(((Calendar) value).getTimeInMillis());
+            return;
+        }
+        
+        String s = value instanceof Enum ? ((Enum) value).name() : value.toString();
+        int length = s.length();
+        
+        boolean quote = false;
+        for (int i = 0; i < length && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        
+        if (!quote) {
+            writer.writeUtf8(s, 0, length);
+            return;
+        }
+        
+        // Quotes are escaped by doubling them
+        writer.write((byte) '"');
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) == '"') {
+                writer.writeUtf8(s, start, i + 1);
+                start = i;
+            }
+        }
+        writer.writeUtf8(s, start, length);
+        writer.write((byte) '"');
+    }
+    
+    
+    private static boolean isBean(Object record) {
+        return record != null
+            && !(record instanceof CharSequence)
+            && !(record instanceof Number)
+            && !(record instanceof Boolean)
+            && !(record instanceof Character)
+            && !(record instanceof Enum)
+            && !(record instanceof Date)
+            && !(record instanceof Calendar)
+            && !(record instanceof Iterable)
+            && !(record instanceof Map)
+            && !record.getClass().isArray();
+    }
+    
+    
+    /**
+     * Closes the records source if it holds resources, like a database 
+     * cursor. If writing already failed, a close error is added to that
+     * failure as suppressed so the original cause is not lost.
+     * @param records the records source.
+     * @param failure the exception being propagated, or null.
+     */
+    private static void close(Iterator<?> records, Throwable failure) throws IOException {
+        if (!(records instanceof AutoCloseable)) {
+            return;
+        }
+        
+        try {
+            ((AutoCloseable) records).close();
+        }
+        catch (Exception e) {
+            if (failure != null) {
+                failure.addSuppressed(e);
+            }
+            else if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            else {
+                throw new IOException(e);
+            }
+        }
+    }
+    
+}
@@ -30,6 +30,7 @@
  */
 package com.cinnamonframework;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.text.ParseException;
@@ -49,6 +50,8 @@ public class Request {
     private String remoteIp;
     private String referer;
     private UploadedFile[] uploadedFiles;
+    private UploadManager.PendingUploads pendingUploads;
+    private ResumableUploadManager resumableUploadManager;
     private Locale locale;
     private String datePattern = "MM/dd/yyyy";
     private RequestMethod method;
@@ -62,6 +65,31 @@ public class Request {
     private String serverName;
     private int serverPort;
     
+    
+    /**
+     * Leaves this request as new, so it can be used for another request.
+     */
+    void reset() {
+        parameters = null;
+        remoteIp = null;
+        referer = null;
+        uploadedFiles = null;
+        pendingUploads = null;
+        resumableUploadManager = null;
+        locale = null;
+        datePattern = "MM/dd/yyyy";
+        method = null;
+        contextPath = null;
+        realPath = null;
+        uri = null;
+        url = null;
+        pathInfo = null;
+        servletPath = null;
+        scheme = null;
+        serverName = null;
+        serverPort = 0;
+    }
+    
    
     /**
      * @return the remoteIp
@@ -477,7 +505,7 @@ public class Request {
     }
     
     public UploadedFile getUploadedFile(String name) {
-        for (UploadedFile file : uploadedFiles) {
+        for (UploadedFile file : getUploadedFiles()) {
             if (name.equals(file.getName())) {
                 return file;
             }
@@ -487,20 +515,55 @@ public class Request {
     }
     
     public UploadedFile getUploadedFile(int id) {
-        if (id >= 0 && id < uploadedFiles.length) {
-            return uploadedFiles[id];
+        UploadedFile[] files = getUploadedFiles();
+        if (id >= 0 && id < files.length) {
+            return files[id];
         }
         
         return null;
     }
     
+    /**
+     * Returns the files uploaded with this request. Files are saved the first
+     * time this method (or any other getUploadedFile method) is called, so 
+     * requests that never ask for their files do not pay for saving them.
+     * @return the uploaded files or an empty array if there are none.
+     */
     public UploadedFile[] getUploadedFiles() {
+        if (uploadedFiles == null) {
+            uploadedFiles = pendingUploads != null 
+                ? pendingUploads.process() : new UploadedFile[0];
+            pendingUploads = null;
+        }
         return uploadedFiles;
     }
     
     void setUploadedFiles(UploadedFile[] uploadedFiles) {
         this.uploadedFiles = uploadedFiles;
     }
+    
+    void setPendingUploads(UploadManager.PendingUploads pendingUploads) {
+        this.pendingUploads = pendingUploads;
+    }
+    
+    /**
+     * Completes a resumable upload and stores its file in the uploads 
+     * directory, like any other uploaded file.
+     * @param id the upload id, as returned when the upload was created.
+     * @return the uploaded file, or null if resumable uploads are disabled,
+     *         the upload does not exist or it's not complete yet.
+     * @throws IOException if the file cannot be stored.
+     */
+    public UploadedFile completeUpload(String id) throws IOException {
+        if (resumableUploadManager == null) {
+            return null;
+        }
+        return resumableUploadManager.complete(id);
+    }
+    
+    void setResumableUploadManager(ResumableUploadManager resumableUploadManager) {
+        this.resumableUploadManager = resumableUploadManager;
+    }
 
     /**
      * @return the locale
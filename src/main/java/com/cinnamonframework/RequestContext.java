@@ -0,0 +1,70 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+/**
+ * The framework objects created for every request: the url analysis, the
+ * request, the session and the messages. When request recycling is on, 
+ * each thread reuses the same context instead of allocating a new one 
+ * per request.
+ * 
+ * @see RequestContextPool
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class RequestContext {
+    
+    final UrlAnalyzer urlAnalyzer = new UrlAnalyzer();
+    final Request request = new Request();
+    final Session session = new Session();
+    final Messages messages;
+    
+    /**
+     * Set by the pool while the context is in use and leaks are being 
+     * detected.
+     */
+    RequestContextPool.Tracker tracker;
+    
+    
+    RequestContext(MessageManager messageManager) {
+        messages = new Messages(messageManager);
+    }
+    
+    
+    /**
+     * Leaves every object as new, ready for the next request.
+     */
+    void reset() {
+        request.reset();
+        session.reset();
+        messages.reset();
+    }
+    
+}
@@ -0,0 +1,230 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands out request contexts. With recycling off, every request gets a new
+ * context. With recycling on, each container thread keeps its context and 
+ * reuses it, reset, for the next request, so the framework objects of a 
+ * request are not garbage any more.
+ * 
+ * A recycled context must not be used once its request is finished. That 
+ * is why recycling is optional: applications that keep the Request, 
+ * Session or Messages of an action (in a static field, another thread or
+ * an event stream) would see them change under their feet. Contexts of
+ * requests that go asynchronous are discarded instead of released.
+ * 
+ * To find contexts that are acquired but never given back, leak detection
+ * tracks every context in use; a context collected without being released
+ * or discarded is logged along with the place it was acquired. It's meant
+ * for development, since it records a stack trace per request.
+ * 
+ * Each thread keeps its context in a holder of its own, a JDK class, so 
+ * once shutdown empties the holders, the container threads that outlive 
+ * the application do not keep its classes loaded.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class RequestContextPool {
+    
+    private static final String logger = RequestContextPool.class.getName();
+    
+    private final MessageManager messageManager;
+    private final boolean recycle;
+    private final boolean detectLeaks;
+    
+    private final ThreadLocal<AtomicReference<RequestContext>> idle = new ThreadLocal<>();
+    private final Set<AtomicReference<RequestContext>> holders = Collections.newSetFromMap(
+        Collections.synchronizedMap(new WeakHashMap<AtomicReference<RequestContext>, Boolean>()));
+    private volatile boolean closed;
+    
+    private final ReferenceQueue<RequestContext> collected = new ReferenceQueue<>();
+    private final Set<Tracker> trackers = 
+        Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+    
+    
+    /**
+     * @param messageManager used by the messages of every context.
+     * @param recycle true to reuse contexts.
+     * @param detectLeaks true to report contexts that are never released.
+     */
+    RequestContextPool(MessageManager messageManager, boolean recycle, boolean detectLeaks) {
+        this.messageManager = messageManager;
+        this.recycle = recycle;
+        this.detectLeaks = detectLeaks;
+    }
+    
+    
+    /**
+     * @return a new or reset context for the current request. It must be
+     *         given back with release or discard once the request is done.
+     */
+    RequestContext acquire() {
+        
+        RequestContext context = null;
+        if (recycle && !closed) {
+            AtomicReference<RequestContext> holder = idle.get();
+            if (holder != null) {
+                context = holder.getAndSet(null);
+            }
+        }
+        if (context == null) {
+            context = new RequestContext(messageManager);
+        }
+        
+        if (detectLeaks) {
+            reportLeaks();
+            context.tracker = new Tracker(context, collected);
+            trackers.add(context.tracker);
+        }
+        
+        return context;
+    }
+    
+    
+    /**
+     * Gives back a context whose request is finished. The current thread
+     * uses it again for its next request.
+     * @param context 
+     */
+    void release(RequestContext context) {
+        
+        if (!untrack(context) || !recycle)
+            return;
+        
+        if (closed) {
+            idle.remove();
+            return;
+        }
+        
+        AtomicReference<RequestContext> holder = idle.get();
+        if (holder == null) {
+            holder = new AtomicReference<>();
+            idle.set(holder);
+            holders.add(holder);
+        }
+        if (holder.get() == null) {
+            context.reset();
+            holder.set(context);
+        }
+    }
+    
+    
+    /**
+     * Gives back a context that is still in use after the request thread 
+     * is done with it, like in asynchronous requests. It's never reused.
+     * @param context 
+     */
+    void discard(RequestContext context) {
+        untrack(context);
+    }
+    
+    
+    /**
+     * Stops reusing contexts and lets go of the idle ones, so the 
+     * application can be unloaded. Requests still running get new contexts 
+     * from now on.
+     */
+    void shutdown() {
+        
+        closed = true;
+        idle.remove();
+        synchronized (holders) {
+            for (AtomicReference<RequestContext> holder : holders) {
+                holder.set(null);
+            }
+            holders.clear();
+        }
+        trackers.clear();
+    }
+    
+    
+    /**
+     * Stops tracking the context.
+     * @return false if the context was already given back.
+     */
+    private boolean untrack(RequestContext context) {
+        
+        if (!detectLeaks)
+            return true;
+        
+        Tracker tracker = context.tracker;
+        if (tracker == null) {
+            Logger.getLogger(logger).log(Level.WARNING, 
+                "A request context was given back twice.", new Throwable());
+            return false;
+        }
+        
+        context.tracker = null;
+        trackers.remove(tracker);
+        tracker.clear();
+        return true;
+    }
+    
+    
+    private void reportLeaks() {
+        
+        Tracker tracker;
+        while ((tracker = (Tracker) collected.poll()) != null) {
+            if (trackers.remove(tracker)) {
+                Logger.getLogger(logger).log(Level.WARNING, 
+                    "A request context was never released; it was acquired by:", 
+                    tracker.origin);
+            }
+        }
+    }
+    
+    
+    /**
+     * Follows a context in use, remembering who acquired it.
+     */
+    static final class Tracker extends WeakReference<RequestContext> {
+        
+        final Throwable origin;
+        
+        Tracker(RequestContext context, ReferenceQueue<RequestContext> queue) {
+            super(context, queue);
+            origin = new Throwable("Request context acquired on " + Thread.currentThread().getName());
+        }
+        
+    }
+    
+}
@@ -0,0 +1,212 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Emits a "com.cinnamonframework.Request" JDK Flight Recorder event per 
+ * request, with the time spent in every phase (see RequestTimer.Phase).
+ * 
+ * The framework targets Java 7, which has no jdk.jfr module, so the event
+ * type is defined at runtime with jdk.jfr.EventFactory and used through
+ * method handles. On runtimes without Flight Recorder, isAvailable returns
+ * false and nothing else is done.
+ * 
+ * Events are created only while a recording has the event enabled, for
+ * example: jcmd &lt;pid&gt; JFR.start settings=profile.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class RequestEvents {
+    
+    private static final String EventName = "com.cinnamonframework.Request";
+    
+    private static final MethodHandle isEnabled;
+    private static final MethodHandle newEvent;
+    private static final MethodHandle begin;
+    private static final MethodHandle set;
+    private static final MethodHandle commit;
+    
+    static {
+        MethodHandle[] handles = null;
+        try {
+            handles = createHandles();
+        }
+        catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            Logger.getLogger(RequestEvents.class.getName()).log(Level.FINE, 
+                "Flight Recorder events are not available.", e);
+        }
+        
+        isEnabled = handles != null ? handles[0] : null;
+        newEvent = handles != null ? handles[1] : null;
+        begin = handles != null ? handles[2] : null;
+        set = handles != null ? handles[3] : null;
+        commit = handles != null ? handles[4] : null;
+    }
+    
+    
+    private RequestEvents() {
+        
+    }
+    
+    
+    /**
+     * @return true if this runtime has Flight Recorder.
+     */
+    static boolean isAvailable() {
+        return isEnabled != null;
+    }
+    
+    
+    /**
+     * Starts an event if a recording wants it.
+     * @return the started event or null.
+     */
+    static Object begin() {
+        if (isEnabled == null)
+            return null;
+        
+        try {
+            if (!(boolean) isEnabled.invoke()) {
+                return null;
+            }
+            Object event = newEvent.invoke();
+            begin.invoke(event);
+            return event;
+        }
+        catch (Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Ends and records an event started with begin.
+     * @param event
+     * @param route the requested class and method.
+     * @param durations nanoseconds per phase, in Phase order.
+     */
+    static void commit(Object event, String route, long[] durations) {
+        try {
+            set.invoke(event, 0, route);
+            for (int i = 0; i < durations.length; i++) {
+                set.invoke(event, i + 1, durations[i]);
+            }
+            commit.invoke(event);
+        }
+        catch (Error e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            Logger.getLogger(RequestEvents.class.getName()).log(Level.FINE, null, e);
+        }
+    }
+    
+    
+    /**
+     * Defines the event type and returns handles for EventType.isEnabled,
+     * EventFactory.newEvent, Event.begin, Event.set and Event.commit.
+     */
+    @SuppressWarnings("unchecked")
+    private static MethodHandle[] createHandles() throws ReflectiveOperationException {
+        
+        Class<?> factoryType = Class.forName("jdk.jfr.EventFactory");
+        Class<?> eventType = Class.forName("jdk.jfr.Event");
+        Class<?> annotationElementType = Class.forName("jdk.jfr.AnnotationElement");
+        Class<?> valueDescriptorType = Class.forName("jdk.jfr.ValueDescriptor");
+        Class<? extends Annotation> name = (Class<? extends Annotation>) Class.forName("jdk.jfr.Name");
+        Class<? extends Annotation> label = (Class<? extends Annotation>) Class.forName("jdk.jfr.Label");
+        Class<? extends Annotation> category = (Class<? extends Annotation>) Class.forName("jdk.jfr.Category");
+        Class<? extends Annotation> timespan = (Class<? extends Annotation>) Class.forName("jdk.jfr.Timespan");
+        
+        AnnotationFactory annotations = new AnnotationFactory(annotationElementType);
+        
+        List<Object> eventAnnotations = Arrays.asList(
+            annotations.create(name, EventName),
+            annotations.create(label, "Cinnamon Request"),
+            annotations.create(category, new String[] { "Cinnamon" }));
+        
+        List<Object> fields = new ArrayList<>();
+        fields.add(valueDescriptorType.getConstructor(Class.class, String.class, List.class)
+            .newInstance(String.class, "route", 
+                Collections.singletonList(annotations.create(label, "Route"))));
+        for (RequestTimer.Phase phase : RequestTimer.Phase.values()) {
+            fields.add(valueDescriptorType.getConstructor(Class.class, String.class, List.class)
+                .newInstance(long.class, phase.getMetricName(), Arrays.asList(
+                    annotations.create(label, phase.name()),
+                    annotations.create(timespan, "NANOSECONDS"))));
+        }
+        
+        Object factory = factoryType.getMethod("create", List.class, List.class)
+            .invoke(null, eventAnnotations, fields);
+        Object type = factoryType.getMethod("getEventType").invoke(factory);
+        
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        return new MethodHandle[] {
+            lookup.unreflect(type.getClass().getMethod("isEnabled")).bindTo(type),
+            lookup.unreflect(factoryType.getMethod("newEvent")).bindTo(factory),
+            lookup.unreflect(eventType.getMethod("begin")),
+            lookup.unreflect(eventType.getMethod("set", int.class, Object.class)),
+            lookup.unreflect(eventType.getMethod("commit"))
+        };
+    }
+    
+    
+    /**
+     * Creates jdk.jfr.AnnotationElement instances.
+     */
+    private static final class AnnotationFactory {
+        
+        private final Class<?> type;
+        
+        AnnotationFactory(Class<?> type) {
+            this.type = type;
+        }
+        
+        Object create(Class<? extends Annotation> annotation, Object value) throws ReflectiveOperationException {
+            return type.getConstructor(Class.class, Object.class).newInstance(annotation, value);
+        }
+        
+    }
+    
+}
@@ -38,8 +38,12 @@ import javax.servlet.http.HttpServletRequest;
  */
 class RequestManager {
     
-    static Request createRequest(HttpServletRequest httpServletRequest, RequestMethod requestMethod) {
-        Request request = new Request();
+    /**
+     * Fills the given request, which must be new or reset, with the 
+     * information of the current HttpServletRequest.
+     */
+    static Request createRequest(Request request, HttpServletRequest httpServletRequest, RequestMethod requestMethod,
+            UploadManager uploadManager, ResumableUploadManager resumableUploadManager, Messages messages) {
         
         request.setRequestMethod(requestMethod);
         request.setReferer(httpServletRequest.getHeader("referer"));
@@ -55,7 +59,10 @@ class RequestManager {
         request.setScheme(httpServletRequest.getScheme());
         request.setServerName(httpServletRequest.getServerName());
         request.setServerPort(httpServletRequest.getServerPort());
-        //request.setUploadedFiles(processUploadedFiles(httpServletRequest, bundle));
+        if (uploadManager != null) {
+            request.setPendingUploads(uploadManager.defer(httpServletRequest, messages));
+        }
+        request.setResumableUploadManager(resumableUploadManager);
 	
         return request;        
     }   
@@ -0,0 +1,192 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Measures the time a request spends in each phase of its processing. A 
+ * request is timed only if it's sampled for a Server-Timing header or a 
+ * Flight Recorder recording wants its event; otherwise it gets Off, which
+ * does not even read the clock.
+ * 
+ * Phases are measured as laps: every call to lap adds the time since the
+ * previous lap to the given phase.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class RequestTimer {
+    
+    enum Phase {
+        /** Splitting the URL into class, method and parameters. */
+        Url("url"),
+        /** Creating the controller. */
+        Controller("controller"),
+        /** Finding the route and checking rate and upload limits. */
+        Admission("admission"),
+        /** Creating the request, messages and session objects. */
+        Request("request"),
+        /** Running interceptors. */
+        Interceptors("interceptors"),
+        /** Reading the action parameters from the request. */
+        Binding("binding"),
+        /** Running the action. */
+        Action("action"),
+        /** Copying the session back into the HttpSession. */
+        Session("session"),
+        /** Writing the response. */
+        Render("render");
+        
+        private final String metricName;
+        
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+        
+        /**
+         * @return the name used in Server-Timing headers and events.
+         */
+        String getMetricName() {
+            return metricName;
+        }
+    }
+    
+    private static final Phase[] Phases = Phase.values();
+    
+    /**
+     * The timer of requests that are not measured.
+     */
+    static final RequestTimer Off = new RequestTimer(false, null);
+    
+    private final boolean serverTiming;
+    private final Object event;
+    private final long[] durations;
+    private final long start;
+    private long mark;
+    
+    
+    private RequestTimer(boolean serverTiming, Object event) {
+        this.serverTiming = serverTiming;
+        this.event = event;
+        if (serverTiming || event != null) {
+            durations = new long[Phases.length];
+            start = mark = System.nanoTime();
+        }
+        else {
+            durations = null;
+            start = 0;
+        }
+    }
+    
+    
+    /**
+     * Starts timing a request.
+     * @param serverTiming true if the request was sampled for a 
+     *        Server-Timing header.
+     * @param events true if events should be emitted when Flight Recorder 
+     *        is recording them.
+     * @return a running timer, or Off if the request does not need one.
+     */
+    static RequestTimer start(boolean serverTiming, boolean events) {
+        Object event = events ? RequestEvents.begin() : null;
+        if (!serverTiming && event == null) {
+            return Off;
+        }
+        return new RequestTimer(serverTiming, event);
+    }
+    
+    
+    /**
+     * Adds the time since the previous lap to the given phase.
+     * @param phase 
+     */
+    void lap(Phase phase) {
+        if (durations == null)
+            return;
+        
+        long now = System.nanoTime();
+        durations[phase.ordinal()] += now - mark;
+        mark = now;
+    }
+    
+    
+    /**
+     * Adds a Server-Timing header with the phases measured so far, if the 
+     * request was sampled. It must be called before the response is 
+     * committed, so the rendering time is not included.
+     * @param httpServletResponse 
+     */
+    void writeHeader(HttpServletResponse httpServletResponse) {
+        if (!serverTiming)
+            return;
+        
+        StringBuilder sb = new StringBuilder(160);
+        for (Phase phase : Phases) {
+            long duration = durations[phase.ordinal()];
+            if (duration > 0) {
+                appendMetric(sb, phase.getMetricName(), duration);
+            }
+        }
+        appendMetric(sb, "total", mark - start);
+        
+        httpServletResponse.addHeader("Server-Timing", sb.toString());
+    }
+    
+    
+    /**
+     * Ends timing and emits the request event, if any.
+     * @param urlAnalyzer the analysis of the requested URL.
+     */
+    void finish(UrlAnalyzer urlAnalyzer) {
+        if (event != null) {
+            RequestEvents.commit(event, 
+                urlAnalyzer.getClassName() + "." + urlAnalyzer.getMethodName(), durations);
+        }
+    }
+    
+    
+    /**
+     * Appends "name;dur=milliseconds", with microseconds precision.
+     */
+    private static void appendMetric(StringBuilder sb, String name, long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        
+        if (sb.length() > 0) {
+            sb.append(", ");
+        }
+        sb.append(name).append(";dur=").append(micros / 1000).append('.');
+        if (fraction < 100) sb.append('0');
+        if (fraction < 10) sb.append('0');
+        sb.append(fraction);
+    }
+    
+}
@@ -31,6 +31,10 @@
 package com.cinnamonframework;
 
 import com.cinnamonframework.util.Strings;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
 
 /**
  *
@@ -47,6 +51,9 @@ public class Result {
         public static final String TextHtml = "text/html; charset=utf-8";
         public static final String TextPlain = "text/plain; charset=utf-8";
         public static final String Xml = "application/xml; charset=utf-8";
+        public static final String EventStream = "text/event-stream; charset=utf-8";
+        public static final String Ndjson = "application/x-ndjson; charset=utf-8";
+        public static final String Csv = "text/csv; charset=utf-8";
     }
     
     /**
@@ -87,6 +94,7 @@ public class Result {
         public static final int UnsupportedMediaType = 415;
         public static final int RequestedRangeNotSatisfiable = 416;
         public static final int ExpectationFailed = 417;
+        public static final int TooManyRequests = 429;
         public static final int InternalError = 500;
         public static final int NotImplemented = 501;
         public static final int BadGateway = 502;
@@ -98,8 +106,16 @@ public class Result {
     private String contentType = ContentType.TextHtml;
     private int statusCode = StatusCode.Ok;
     private String jsp = null;
+    private String template = null;
+    private EventStream eventStream = null;
+    private Iterator<?> records = null;
+    private boolean csv = false;
     private String redirect = null;
     private String content = null;
+    private ByteBuffer bytes = null;
+    private Path file = null;
+    private boolean json = false;
+    private Object jsonValue = null;
     
    
     /**
@@ -118,6 +134,65 @@ public class Result {
         return jsp != null && jsp.length() > 0;
     }
     
+    /**
+     * Returns true if this result should render a Cinnamon template.
+     * @return true if this result should render a Cinnamon template.
+     */
+    public boolean isTemplate() {
+        return template != null && template.length() > 0;
+    }
+    
+    /**
+     * Returns true if this result should keep the connection open to send
+     * Server-Sent Events.
+     * @return true if this result holds an event stream.
+     */
+    public boolean isEventStream() {
+        return eventStream != null;
+    }
+    
+    /**
+     * Returns true if this result should stream records as newline 
+     * delimited JSON.
+     * @return true if this result holds records to stream as NDJSON.
+     */
+    public boolean isNdjson() {
+        return records != null && !csv;
+    }
+    
+    /**
+     * Returns true if this result should stream records as CSV.
+     * @return true if this result holds records to stream as CSV.
+     */
+    public boolean isCsv() {
+        return records != null && csv;
+    }
+    
+    /**
+     * Returns true if this result holds pre-encoded content that should be
+     * written as is, without going through a character writer.
+     * @return true if this result holds pre-encoded content.
+     */
+    public boolean isBinary() {
+        return bytes != null;
+    }
+    
+    /**
+     * Returns true if this result should send the content of a file.
+     * @return true if this result should send the content of a file.
+     */
+    public boolean isFile() {
+        return file != null;
+    }
+    
+    /**
+     * Returns true if this result should serialize a value as JSON.
+     * @return true if this result should serialize a value as JSON.
+     */
+    public boolean isJson() {
+        return json;
+    }
+    
     public String getContentType() {
         return contentType;
     }
@@ -126,6 +201,10 @@ public class Result {
         return jsp;
     }
     
+    public String getTemplate() {
+        return template;
+    }
+    
     public int getStatusCode() {
         return statusCode;
     }
@@ -163,6 +242,17 @@ public class Result {
         this.jsp = jsp;
     }
 
+    /**
+     * @param template the template to set
+     * @throws NullPointerException if parameter is null or blank.
+     */
+    public void setTemplate(String template) {
+        if (Strings.isNullOrBlank(template)) 
+            throw new NullPointerException("Parameter cannot be null or blank.");
+        
+        this.template = template;
+    }
+
     /**
      * @param redirect the redirect to set
      * @throws NullPointerException if parameter is null or blank.
@@ -191,6 +281,148 @@ public class Result {
         
         this.content = content;
     }
+
+    /**
+     * Returns a view of the pre-encoded content. Every call returns a new 
+     * view with its own position and limit, so a buffer shared among many 
+     * results (like a cached response) is never consumed by writing it.
+     * @return the pre-encoded content or null if this result does not have
+     *         any.
+     */
+    public ByteBuffer getBytes() {
+        return bytes != null ? bytes.duplicate() : null;
+    }
+
+    /**
+     * Sets pre-encoded content for this result. The array is not copied, so
+     * it must not be modified once it's been handed to the result.
+     * @param bytes the content to set
+     * @throws NullPointerException if parameter is null.
+     */
+    public void setBytes(byte[] bytes) {
+        if (bytes == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        this.bytes = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Sets pre-encoded content for this result. Bytes between the buffer's 
+     * position and limit will be written; the buffer's position is not 
+     * modified.
+     * @param bytes the content to set
+     * @throws NullPointerException if parameter is null.
+     */
+    public void setBytes(ByteBuffer bytes) {
+        if (bytes == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        this.bytes = bytes.slice();
+    }
+
+    /**
+     * @return the file whose content is sent, or null if this result does
+     *         not send a file.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Sets a file whose content is sent as is. Depending on the container, 
+     * the file is sent without copying it into the application.
+     * @param file the file to send
+     * @throws NullPointerException if parameter is null.
+     */
+    public void setFile(Path file) {
+        if (file == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        this.file = file;
+    }
+    
+    /**
+     * Encodes a string using UTF-8, the charset used by all the
+     * Cinnamon content types. Useful to build constant or cached responses
+     * once and serve them with no further encoding.
+     * @param s the string to encode
+     * @return a UTF-8 representation of s.
+     * @throws NullPointerException if parameter is null.
+     */
+    public static byte[] encode(String s) {
+        if (s == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the value to serialize as JSON.
+     */
+    public Object getJson() {
+        return jsonValue;
+    }
+
+    /**
+     * Sets a value that will be serialized as JSON by the framework. Null
+     * values are allowed and are written as "null".
+     * @param value the value to serialize.
+     */
+    public void setJson(Object value) {
+        this.json = true;
+        this.jsonValue = value;
+    }
+
+    /**
+     * @return the event stream
+     */
+    public EventStream getEventStream() {
+        return eventStream;
+    }
+
+    /**
+     * @param eventStream the event stream to set
+     * @throws NullPointerException if parameter is null.
+     */
+    public void setEventStream(EventStream eventStream) {
+        if (eventStream == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        this.eventStream = eventStream;
+    }
+
+    /**
+     * @return the records to stream
+     */
+    public Iterator<?> getRecords() {
+        return records;
+    }
+
+    /**
+     * Sets records that will be streamed as newline delimited JSON.
+     * @param records the records to stream.
+     * @throws NullPointerException if parameter is null.
+     */
+    public void setNdjson(Iterator<?> records) {
+        if (records == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        this.records = records;
+        this.csv = false;
+    }
+
+    /**
+     * Sets records that will be streamed as CSV.
+     * @param records the records to stream.
+     * @throws NullPointerException if parameter is null.
+     */
+    public void setCsv(Iterator<?> records) {
+        if (records == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        this.records = records;
+        this.csv = true;
+    }
     
     
 }
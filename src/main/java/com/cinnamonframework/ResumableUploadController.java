@@ -0,0 +1,208 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Built-in controller that receives resumable uploads. The protocol is:
+ * 
+ * <ol>
+ * <li>POST /resumable-uploads/create?name=video.mp4&amp;type=video/mp4&amp;size=N
+ *     creates an upload and returns its id.</li>
+ * <li>POST /resumable-uploads/chunk?id=ID&amp;offset=N sends a chunk, with 
+ *     the chunk bytes as request body, its Content-Length and 
+ *     Content-Type: application/octet-stream. Chunks can be sent in any 
+ *     order and in parallel, but every byte is sent once: a chunk that 
+ *     overlaps bytes received, or being received, gets 409 Conflict.</li>
+ * <li>GET /resumable-uploads/status?id=ID returns how many bytes were 
+ *     received without gaps (offset) and the received ranges; after a 
+ *     dropped connection, the client sends the missing bytes only.</li>
+ * <li>Once all the bytes were sent, the client calls an application 
+ *     action with the upload id, and the action calls 
+ *     Request.completeUpload(id) to get the uploaded file.</li>
+ * </ol>
+ * 
+ * All responses are JSON objects with the upload id, size, offset, 
+ * received bytes and received ranges, as [start, end) pairs.
+ * 
+ * The controller does not authenticate clients; applications that enable
+ * it must protect its path, for example with an interceptor.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class ResumableUploadController extends Controller 
+        implements HttpServletRequestAware, HttpServletResponseAware {
+    
+    private static final String logger = ResumableUploadController.class.getName();
+    private static final String ChunkContentType = "application/octet-stream";
+    
+    private final ResumableUploadManager resumableUploadManager;
+    private HttpServletRequest httpServletRequest;
+    private HttpServletResponse httpServletResponse;
+    
+    
+    ResumableUploadController(ResumableUploadManager resumableUploadManager) {
+        this.resumableUploadManager = resumableUploadManager;
+    }
+    
+    
+    @Override
+    public void setHttpServletRequest(HttpServletRequest request) {
+        this.httpServletRequest = request;
+    }
+    
+    
+    @Override
+    public void setHttpServletResponse(HttpServletResponse response) {
+        this.httpServletResponse = response;
+    }
+    
+    
+    public Result create() {
+        
+        if (request.getMethod() != RequestMethod.Post) {
+            return error(Result.StatusCode.MethodNotAllowed, "Use POST to create uploads.");
+        }
+        
+        String name = request.getAsString("name");
+        String type = request.getAsString("type");
+        long size = request.getAsLong("size", -1);
+        
+        if (name == null || name.trim().isEmpty()) {
+            return error(Result.StatusCode.BadRequest, "The file name is required.");
+        }
+        if (!resumableUploadManager.isAllowed(type)) {
+            return error(Result.StatusCode.UnsupportedMediaType, "File type not allowed.");
+        }
+        if (size <= 0 || size > resumableUploadManager.getMaxFileSize()) {
+            return error(Result.StatusCode.RequestEntityTooLarge, 
+                "File size must be between 1 and " + resumableUploadManager.getMaxFileSize() + " bytes.");
+        }
+        
+        try {
+            ResumableUploadManager.ResumableUpload upload = resumableUploadManager.create(name, type, size);
+            httpServletResponse.setStatus(Result.StatusCode.Created);
+            return status(upload);
+        }
+        catch (IOException e) {
+            Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
+            return error(Result.StatusCode.ServiceUnavailable, "The upload cannot be created now.");
+        }
+        
+    }
+    
+    
+    public Result chunk() {
+        
+        if (request.getMethod() != RequestMethod.Post) {
+            return error(Result.StatusCode.MethodNotAllowed, "Use POST to send chunks.");
+        }
+        
+        ResumableUploadManager.ResumableUpload upload = resumableUploadManager.get(request.getAsString("id"));
+        if (upload == null) {
+            return error(Result.StatusCode.NotFound, "Upload not found or expired.");
+        }
+        
+        // Other types, like form data, may have been read by the container 
+        // as request parameters.
+        String contentType = httpServletRequest.getContentType();
+        if (contentType == null || !contentType.toLowerCase(Locale.ENGLISH).startsWith(ChunkContentType)) {
+            return error(Result.StatusCode.UnsupportedMediaType, 
+                "Chunks must be sent as " + ChunkContentType + ".");
+        }
+        
+        long offset = request.getAsLong("offset", -1);
+        long length = httpServletRequest.getContentLengthLong();
+        if (length < 0) {
+            return error(Result.StatusCode.LengthRequired, "The chunk length is required.");
+        }
+        if (offset < 0 || offset + length > upload.getSize()) {
+            return error(Result.StatusCode.RequestedRangeNotSatisfiable, "The chunk is outside of the file.");
+        }
+        
+        try {
+            if (!upload.write(offset, Channels.newChannel(httpServletRequest.getInputStream()), length)) {
+                return error(Result.StatusCode.NotFound, "Upload not found or expired.");
+            }
+        }
+        catch (IllegalStateException e) {
+            return error(Result.StatusCode.Conflict, e.getMessage());
+        }
+        catch (IOException e) {
+            // Usually a dropped connection; the bytes written so far are 
+            // kept and the client can resume.
+            Logger.getLogger(logger).log(Level.FINE, e.getMessage(), e);
+            httpServletResponse.setStatus(Result.StatusCode.InternalError);
+        }
+        
+        return status(upload);
+    }
+    
+    
+    public Result status() {
+        
+        ResumableUploadManager.ResumableUpload upload = resumableUploadManager.get(request.getAsString("id"));
+        if (upload == null) {
+            return error(Result.StatusCode.NotFound, "Upload not found or expired.");
+        }
+        
+        return status(upload);
+    }
+    
+    
+    private Result status(ResumableUploadManager.ResumableUpload upload) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", upload.getId());
+        map.put("size", upload.getSize());
+        map.put("offset", upload.getOffset());
+        map.put("received", upload.getReceived());
+        map.put("ranges", upload.getRanges());
+        return json(map);
+    }
+    
+    
+    private Result error(int statusCode, String message) {
+        httpServletResponse.setStatus(statusCode);
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("error", message);
+        return json(map);
+    }
+    
+}
@@ -0,0 +1,516 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import com.cinnamonframework.util.Hex;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of uploads sent in pieces (chunks), so a dropped connection 
+ * does not force the client to send the whole file again.
+ * 
+ * When an upload is created, a file with its final size is allocated in 
+ * the .resumable folder of the uploads directory. Every chunk is written 
+ * at its own offset with positional writes, so chunks can arrive in any 
+ * order and in parallel; the received byte ranges are recorded as they are
+ * written, even if a chunk is interrupted. The content digest is computed
+ * as the contiguous part of the file grows, so completing the upload does
+ * not read the whole file again. Because of that, bytes are written only 
+ * once: a chunk that overlaps bytes received, or being received, is 
+ * refused, so digested bytes cannot change afterwards.
+ * 
+ * Uploads that are not touched for some time expire and their files are 
+ * deleted. Upload state is kept in memory, so pending uploads do not 
+ * survive a restart; their files are deleted when the application starts.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class ResumableUploadManager {
+    
+    static final String Directory = ".resumable";
+    static final long DefaultMaxFileSize = 4L * 1024 * 1024 * 1024;
+    static final long DefaultExpiration = 24 * 60 * 60;
+    
+    /**
+     * Uploads that can be pending at the same time. Every pending upload 
+     * reserves disk space for its full size.
+     */
+    static final int MaxPendingUploads = 1000;
+    
+    /**
+     * Bytes moved per transfer call. Received ranges are recorded after 
+     * every call.
+     */
+    private static final long TransferSize = 1024 * 1024;
+    
+    /**
+     * Bytes mapped into memory at a time when updating a digest.
+     */
+    private static final long MapSize = 64 * 1024 * 1024;
+    
+    private static final String logger = ResumableUploadManager.class.getName();
+    
+    private final UploadManager uploadManager;
+    private final Path directory;
+    private final long maxFileSize;
+    private final long expirationMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentMap<String, ResumableUpload> uploads = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cinnamon-resumable-uploads");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    
+    
+    /**
+     * @param uploadManager validates and stores the completed files.
+     * @param maxFileSize the maximum size of a single file, in bytes.
+     * @param expiration seconds after which an untouched upload is deleted.
+     * @throws IOException if the working directory cannot be created.
+     */
+    ResumableUploadManager(UploadManager uploadManager, long maxFileSize, long expiration) throws IOException {
+        this.uploadManager = uploadManager;
+        this.directory = uploadManager.getDirectory().resolve(Directory);
+        this.maxFileSize = maxFileSize;
+        this.expirationMillis = TimeUnit.SECONDS.toMillis(expiration);
+        
+        java.nio.file.Files.createDirectories(directory);
+        deleteLeftovers();
+        
+        long period = Math.max(1, Math.min(expiration, 60));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+    
+    
+    /**
+     * @return the maximum size of a single file, in bytes.
+     */
+    long getMaxFileSize() {
+        return maxFileSize;
+    }
+    
+    
+    /**
+     * @param contentType a content type, possibly with parameters.
+     * @return true if files with this content type can be uploaded.
+     */
+    boolean isAllowed(String contentType) {
+        return uploadManager.isAllowed(contentType);
+    }
+    
+    
+    /**
+     * Starts a new upload and allocates its file.
+     * @param submittedFileName the name of the file in the client.
+     * @param contentType an allowed content type.
+     * @param size the file size, up to the maximum file size.
+     * @return the new upload.
+     * @throws IOException if there are too many pending uploads, there's 
+     *         not enough disk space or the file cannot be created.
+     */
+    ResumableUpload create(String submittedFileName, String contentType, long size) throws IOException {
+        
+        if (uploads.size() >= MaxPendingUploads) {
+            throw new IOException("Too many pending uploads.");
+        }
+        if (java.nio.file.Files.getFileStore(directory).getUsableSpace() < size) {
+            throw new IOException("Not enough space for an upload of " + size + " bytes.");
+        }
+        
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String id = Hex.encode(bytes);
+        
+        ResumableUpload upload = new ResumableUpload(id, submittedFileName, contentType, size, 
+            directory.resolve(id + ".part"));
+        
+        // Extends the file to its final size. Most file systems create it
+        // sparse; blocks are allocated as chunks are written.
+        try (FileChannel channel = FileChannel.open(upload.file, 
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            if (size > 0) {
+                channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        }
+        
+        uploads.put(id, upload);
+        return upload;
+    }
+    
+    
+    /**
+     * @param id an upload id.
+     * @return the upload or null if it does not exist or it expired.
+     */
+    ResumableUpload get(String id) {
+        if (id == null) {
+            return null;
+        }
+        ResumableUpload upload = uploads.get(id);
+        if (upload != null) {
+            upload.touch();
+        }
+        return upload;
+    }
+    
+    
+    /**
+     * Completes an upload, moving its file into the uploads directory.
+     * @param id an upload id.
+     * @return the stored file, or null if the upload does not exist, it's
+     *         not complete or it's still receiving data.
+     * @throws IOException if the file cannot be stored.
+     */
+    UploadedFile complete(String id) throws IOException {
+        
+        ResumableUpload upload = get(id);
+        if (upload == null || !upload.finish()) {
+            return null;
+        }
+        
+        uploads.remove(id, upload);
+        return uploadManager.store(upload.file, upload.submittedFileName, 
+            upload.contentType, upload.getDigest());
+    }
+    
+    
+    /**
+     * Stops expiring uploads. Pending uploads are deleted on the next start.
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+    
+    
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<ResumableUpload> it = uploads.values().iterator();
+        while (it.hasNext()) {
+            ResumableUpload upload = it.next();
+            if (upload.abandon(now, expirationMillis)) {
+                it.remove();
+                delete(upload.file);
+            }
+        }
+    }
+    
+    
+    private void deleteLeftovers() throws IOException {
+        try (DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                delete(file);
+            }
+        }
+    }
+    
+    
+    private static void delete(Path file) {
+        try {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+        catch (IOException e) {
+            Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+    
+    
+    /**
+     * An upload that is being received in chunks.
+     */
+    static final class ResumableUpload {
+        
+        private final String id;
+        private final String submittedFileName;
+        private final String contentType;
+        private final long size;
+        private final Path file;
+        private volatile long lastAccess = System.currentTimeMillis();
+        
+        // Guarded by this
+        private final TreeMap<Long, Long> ranges = new TreeMap<>(); // start -> end
+        private final TreeMap<Long, Long> writing = new TreeMap<>(); // start -> end
+        private long received;
+        private int writers;
+        private boolean finished;
+        
+        // Guarded by digest
+        private final MessageDigest digest;
+        private long digested;
+        
+        
+        private ResumableUpload(String id, String submittedFileName, 
+                String contentType, long size, Path file) throws IOException {
+            this.id = id;
+            this.submittedFileName = submittedFileName;
+            this.contentType = contentType;
+            this.size = size;
+            this.file = file;
+            this.digest = UploadManager.newDigest();
+        }
+        
+        
+        String getId() {
+            return id;
+        }
+        
+        long getSize() {
+            return size;
+        }
+        
+        /**
+         * @return the number of bytes received without gaps from the 
+         *         beginning of the file; the client should continue from 
+         *         here.
+         */
+        synchronized long getOffset() {
+            Map.Entry<Long, Long> first = ranges.firstEntry();
+            return first != null && first.getKey() == 0 ? first.getValue() : 0;
+        }
+        
+        /**
+         * @return the number of bytes received, including the ones after 
+         *         gaps.
+         */
+        synchronized long getReceived() {
+            return received;
+        }
+        
+        /**
+         * @return the received byte ranges, as {start, end} pairs with the 
+         *         end excluded; chunks must fill the gaps between them.
+         */
+        synchronized List<long[]> getRanges() {
+            List<long[]> list = new ArrayList<>(ranges.size());
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                list.add(new long[] { range.getKey(), range.getValue() });
+            }
+            return list;
+        }
+        
+        
+        /**
+         * Writes a chunk at the given offset. Bytes are recorded as received
+         * as soon as they are written, so an interrupted chunk is not lost.
+         * @param offset where the chunk starts in the file.
+         * @param in the chunk content.
+         * @param length the chunk length.
+         * @return false if the upload was completed or it expired.
+         * @throws IOException if the chunk cannot be read or written.
+         * @throws IllegalStateException if the chunk overlaps bytes that 
+         *         were received or are being received.
+         */
+        boolean write(long offset, ReadableByteChannel in, long length) throws IOException {
+            
+            if (offset < 0 || length < 0 || offset + length > size) {
+                throw new IllegalArgumentException("Chunk is outside of the file.");
+            }
+            
+            synchronized (this) {
+                if (finished) {
+                    return false;
+                }
+                if (overlaps(ranges, offset, offset + length) || overlaps(writing, offset, offset + length)) {
+                    throw new IllegalStateException("Chunk overlaps bytes already received.");
+                }
+                writing.put(offset, offset + length);
+                writers++;
+            }
+            
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                long position = offset;
+                long end = offset + length;
+                while (position < end) {
+                    // Positional transfers do not share a file position, so
+                    // chunks can be written in parallel.
+                    long written = out.transferFrom(in, position, Math.min(TransferSize, end - position));
+                    if (written <= 0) {
+                        break;
+                    }
+                    add(position, position + written);
+                    position += written;
+                    touch();
+                }
+            }
+            finally {
+                synchronized (this) {
+                    writing.remove(offset);
+                    writers--;
+                }
+            }
+            
+            updateDigest();
+            return true;
+        }
+        
+        
+        /**
+         * Marks the upload as finished if it's complete and nobody is 
+         * writing to it. Chunks are not accepted afterwards.
+         * @return true if the upload was marked as finished by this call.
+         */
+        private synchronized boolean finish() {
+            if (finished || writers > 0 || received != size) {
+                return false;
+            }
+            finished = true;
+            return true;
+        }
+        
+        /**
+         * Marks the upload as finished if it was not touched for the given 
+         * time and nobody is writing to it.
+         * @return true if the upload was marked as finished by this call.
+         */
+        private synchronized boolean abandon(long now, long idleMillis) {
+            if (finished || writers > 0 || now - lastAccess <= idleMillis) {
+                return false;
+            }
+            finished = true;
+            return true;
+        }
+        
+        
+        private void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+        
+        
+        /**
+         * @return true if [start, end) shares bytes with any of the ranges.
+         */
+        private static boolean overlaps(TreeMap<Long, Long> ranges, long start, long end) {
+            
+            if (start == end) {
+                return false;
+            }
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() > start) {
+                return true;
+            }
+            Long after = ranges.higherKey(start);
+            return after != null && after < end;
+        }
+        
+        
+        /**
+         * Adds a range to the received ones, merging it with its neighbors.
+         */
+        private synchronized void add(long start, long end) {
+            
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+                received -= before.getValue() - before.getKey();
+                ranges.remove(before.getKey());
+            }
+            
+            Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+            while (after != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                received -= after.getValue() - after.getKey();
+                ranges.remove(after.getKey());
+                after = ranges.ceilingEntry(start);
+            }
+            
+            ranges.put(start, end);
+            received += end - start;
+        }
+        
+        
+        /**
+         * Adds the bytes received since the last call, without gaps, to the
+         * digest. The data was just written, so it's usually read from the 
+         * operating system cache.
+         */
+        private void updateDigest() throws IOException {
+            
+            synchronized (digest) {
+                long offset = getOffset();
+                if (digested >= offset) {
+                    return;
+                }
+                
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    while (digested < offset) {
+                        MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 
+                            digested, Math.min(MapSize, offset - digested));
+                        digested += buffer.remaining();
+                        digest.update(buffer);
+                    }
+                }
+            }
+            
+        }
+        
+        
+        private String getDigest() throws IOException {
+            updateDigest();
+            synchronized (digest) {
+                return Hex.encode(digest.digest());
+            }
+        }
+        
+    }
+    
+}
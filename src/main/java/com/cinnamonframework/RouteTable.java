@@ -0,0 +1,228 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import com.cinnamonframework.annotations.Intercept;
+import com.cinnamonframework.annotations.UploadLimit;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps what a request needs to know about its action: the method, its 
+ * rate and upload limits, its annotations and its interceptors, in the 
+ * order they run. A route is compiled the first time its action is 
+ * requested and reused afterwards, so requests do not look up methods or
+ * annotations, or build interceptor lists.
+ * 
+ * Only existing actions are kept, so requests to unknown actions cannot 
+ * make the table grow.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class RouteTable {
+    
+    private final Interceptor[] globalInterceptors;
+    private final RateLimitManager rateLimitManager;
+    
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, Route>> routes = 
+        new ConcurrentHashMap<>();
+    
+    /**
+     * The single instance of every interceptor class.
+     */
+    private final ConcurrentMap<Class<?>, Interceptor> interceptors = 
+        new ConcurrentHashMap<>();
+    
+    
+    /**
+     * @param globalInterceptors interceptors that run around every action.
+     * @param rateLimitManager 
+     */
+    RouteTable(List<Interceptor> globalInterceptors, RateLimitManager rateLimitManager) {
+        this.globalInterceptors = globalInterceptors.toArray(new Interceptor[globalInterceptors.size()]);
+        this.rateLimitManager = rateLimitManager;
+        for (Interceptor interceptor : globalInterceptors) {
+            interceptors.putIfAbsent(interceptor.getClass(), interceptor);
+        }
+    }
+    
+    
+    /**
+     * @param instance the controller that handles the request.
+     * @param methodName the requested action.
+     * @return the route or null if the controller does not have the action.
+     * @throws ServerException if an interceptor cannot be created.
+     */
+    Route get(Controller instance, String methodName) throws ServerException {
+        
+        Class<?> type = instance.getClass();
+        
+        ConcurrentMap<String, Route> byName = routes.get(type);
+        if (byName == null) {
+            byName = new ConcurrentHashMap<>();
+            ConcurrentMap<String, Route> existing = routes.putIfAbsent(type, byName);
+            if (existing != null) {
+                byName = existing;
+            }
+        }
+        
+        Route route = byName.get(methodName);
+        if (route == null) {
+            Method method = ControllerManager.findMethod(type, methodName);
+            if (method == null) {
+                return null;
+            }
+            route = compile(type, method);
+            Route existing = byName.putIfAbsent(methodName, route);
+            if (existing != null) {
+                route = existing;
+            }
+        }
+        return route;
+    }
+    
+    
+    private Route compile(Class<?> type, Method method) throws ServerException {
+        
+        // Action annotations take precedence over class annotations.
+        Map<Class<? extends Annotation>, Annotation> annotations = new HashMap<>();
+        for (Annotation annotation : type.getAnnotations()) {
+            annotations.put(annotation.annotationType(), annotation);
+        }
+        for (Annotation annotation : method.getAnnotations()) {
+            annotations.put(annotation.annotationType(), annotation);
+        }
+        
+        // Keyed by class, so every interceptor runs only once.
+        Map<Class<?>, Interceptor> chain = new LinkedHashMap<>();
+        for (Interceptor interceptor : globalInterceptors) {
+            chain.put(interceptor.getClass(), interceptor);
+        }
+        addInterceptors(chain, type.getAnnotation(Intercept.class));
+        addInterceptors(chain, method.getAnnotation(Intercept.class));
+        
+        return new Route(method, 
+            chain.values().toArray(new Interceptor[chain.size()]),
+            annotations.isEmpty() ? Collections.<Class<? extends Annotation>, Annotation>emptyMap() : annotations,
+            method.getAnnotation(UploadLimit.class),
+            rateLimitManager.getLimiter(type, method));
+    }
+    
+    
+    private void addInterceptors(Map<Class<?>, Interceptor> chain, Intercept intercept) throws ServerException {
+        if (intercept == null)
+            return;
+        
+        for (Class<? extends Interceptor> type : intercept.value()) {
+            if (!chain.containsKey(type)) {
+                chain.put(type, getInterceptor(type));
+            }
+        }
+    }
+    
+    
+    private Interceptor getInterceptor(Class<? extends Interceptor> type) throws ServerException {
+        Interceptor interceptor = interceptors.get(type);
+        if (interceptor == null) {
+            try {
+                interceptor = type.newInstance();
+            }
+            catch (InstantiationException | IllegalAccessException e) {
+                throw new ServerException(
+                    "Interceptor \"" + type.getName() + "\" cannot be instantiated: " 
+                  + e.getMessage(), e);
+            }
+            Interceptor existing = interceptors.putIfAbsent(type, interceptor);
+            if (existing != null) {
+                interceptor = existing;
+            }
+        }
+        return interceptor;
+    }
+    
+    
+    /**
+     * A compiled action.
+     */
+    static final class Route {
+        
+        private final Method method;
+        private final Interceptor[] interceptors;
+        private final Map<Class<? extends Annotation>, Annotation> annotations;
+        private final UploadLimit uploadLimit;
+        private final RateLimitManager.Limiter limiter;
+        
+        private Route(Method method, Interceptor[] interceptors, 
+                Map<Class<? extends Annotation>, Annotation> annotations,
+                UploadLimit uploadLimit, RateLimitManager.Limiter limiter) {
+            this.method = method;
+            this.interceptors = interceptors;
+            this.annotations = annotations;
+            this.uploadLimit = uploadLimit;
+            this.limiter = limiter;
+        }
+        
+        Method getMethod() {
+            return method;
+        }
+        
+        Interceptor[] getInterceptors() {
+            return interceptors;
+        }
+        
+        <A extends Annotation> A getAnnotation(Class<A> type) {
+            return type.cast(annotations.get(type));
+        }
+        
+        /**
+         * @return the action upload limits or null if it has none.
+         */
+        UploadLimit getUploadLimit() {
+            return uploadLimit;
+        }
+        
+        /**
+         * @return the action rate limiter or null if it has no rate limit.
+         */
+        RateLimitManager.Limiter getLimiter() {
+            return limiter;
+        }
+        
+    }
+    
+}
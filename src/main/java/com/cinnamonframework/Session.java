@@ -31,7 +31,6 @@
 package com.cinnamonframework;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -53,7 +52,7 @@ public class Session implements Map<String, Object> {
     private int maxInactiveInterval;
     private boolean active = false;
     private boolean invalid = false;
-    private final Map<String,Object> attributes = new HashMap<>();
+    private final Map<String,Object> attributes = new CompactMap<>();
     
     
     /**
@@ -154,6 +153,19 @@ public class Session implements Map<String, Object> {
         return invalid;
     }
     
+    /**
+     * Leaves this session as new, so it can be used for another request.
+     */
+    void reset() {
+        attributes.clear();
+        id = null;
+        creationTime = 0L;
+        lastAccessedTime = 0L;
+        maxInactiveInterval = 0;
+        active = false;
+        invalid = false;
+    }
+    
     
     /* Map methods */
     
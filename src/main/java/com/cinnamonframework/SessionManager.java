@@ -40,9 +40,12 @@ import javax.servlet.http.HttpSession;
  */
 class SessionManager {
 
-    static Session createSession(HttpServletRequest httpServletRequest) {
+    /**
+     * Fills the given session, which must be new or reset, with the 
+     * attributes of the current HttpSession.
+     */
+    static Session createSession(Session session, HttpServletRequest httpServletRequest) {
         
-        Session session = new Session();
         HttpSession httpSession = httpServletRequest.getSession(false);
     
         if (httpSession != null && httpServletRequest.isRequestedSessionIdValid()) {
@@ -0,0 +1,530 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled Cinnamon template. Templates are parsed only once into a plan
+ * of nodes: static text is kept as pre-encoded UTF-8 bytes and expressions
+ * are kept already split into their property paths, so rendering does not
+ * parse or encode anything but the values taken from the model.
+ * 
+ * Supported tags:
+ * <ul>
+ * <li>{{name}} or {{user.name}}: writes a value, escaping HTML special 
+ * characters. Properties are read from maps, beans and map entries (key 
+ * and value).</li>
+ * <li>{{{name}}}: writes a value as is, with no escaping.</li>
+ * <li>{{#if expression}} ... {{else}} ... {{/if}}: renders its content if
+ * the value is not null, false, zero or empty.</li>
+ * <li>{{#each expression as item}} ... {{else}} ... {{/each}}: renders its
+ * content for every element of an iterable, array or map. The else part is
+ * rendered if there are no elements.</li>
+ * <li>{{&gt; name}}: renders another template in place.</li>
+ * <li>{{! comment}}: ignored.</li>
+ * </ul>
+ * 
+ * Besides model values, templates can use "request", "session" and 
+ * "messages", just like JSPs do.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class Template {
+    
+    /**
+     * Maximum nesting level for included templates.
+     */
+    static final int MaxDepth = 32;
+    
+    private final String name;
+    private final Node[] nodes;
+    
+    
+    private Template(String name, Node[] nodes) {
+        this.name = name;
+        this.nodes = nodes;
+    }
+    
+    
+    /**
+     * Parses a template source.
+     * @param name the template name, used in error messages.
+     * @param source the template source.
+     * @return a compiled template.
+     * @throws ServerException if the source contains errors.
+     */
+    static Template compile(String name, String source) throws ServerException {
+        Parser parser = new Parser(name, source);
+        Node[] nodes = parser.parse(null);
+        return new Template(name, nodes);
+    }
+    
+    
+    /**
+     * @return the template name.
+     */
+    String getName() {
+        return name;
+    }
+    
+    
+    /**
+     * Renders this template.
+     * @param scope the values available to the template.
+     * @param out the buffer to render into.
+     * @throws ServerException if a value cannot be read or an included 
+     *         template cannot be loaded.
+     */
+    void render(Scope scope, TemplateOutput out) throws ServerException {
+        if (scope.depth >= MaxDepth) {
+            throw new ServerException(
+                "Template \"" + name + "\": Maximum include level reached, check for recursive includes.");
+        }
+        scope.depth++;
+        try {
+            render(nodes, scope, out);
+        }
+        finally {
+            scope.depth--;
+        }
+    }
+    
+    
+    private static void render(Node[] nodes, Scope scope, TemplateOutput out) throws ServerException {
+        for (Node node : nodes) {
+            node.render(scope, out);
+        }
+    }
+    
+    
+    /**
+     * Returns true for values that should render the content of an if tag.
+     */
+    private static boolean isTrue(Object value) {
+        if (value == null) return false;
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof CharSequence) return ((CharSequence) value).length() > 0;
+        if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+        if (value instanceof Collection) return !((Collection) value).isEmpty();
+        if (value instanceof Map) return !((Map) value).isEmpty();
+        if (value.getClass().isArray()) return Array.getLength(value) > 0;
+        return true;
+    }
+    
+    
+    /**
+     * The values available to a template while it's being rendered: the
+     * controller's model, request, session and messages, plus the variables
+     * defined by each tags.
+     */
+    static final class Scope {
+        
+        private final Controller controller;
+        private final TemplateManager templateManager;
+        private String[] names = new String[8];
+        private Object[] values = new Object[8];
+        private int size = 0;
+        private int depth = 0;
+        
+        Scope(Controller controller, TemplateManager templateManager) {
+            this.controller = controller;
+            this.templateManager = templateManager;
+        }
+        
+        private void push(String name, Object value) {
+            if (size == names.length) {
+                String[] n = new String[size * 2];
+                Object[] v = new Object[size * 2];
+                System.arraycopy(names, 0, n, 0, size);
+                System.arraycopy(values, 0, v, 0, size);
+                names = n;
+                values = v;
+            }
+            names[size] = name;
+            values[size++] = value;
+        }
+        
+        private void set(Object value) {
+            values[size - 1] = value;
+        }
+        
+        private void pop() {
+            values[--size] = null;
+        }
+        
+        private Object lookup(String name) {
+            // Innermost variables first
+            for (int i = size - 1; i >= 0; i--) {
+                if (names[i].equals(name)) {
+                    return values[i];
+                }
+            }
+            switch (name) {
+                case "request": return controller.request;
+                case "session": return controller.session;
+                case "messages": return controller.messages;
+                default: return controller.model.get(name);
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * A property path, like user.address.city, split at compile time.
+     */
+    private static final class Expression {
+        
+        private final String[] path;
+        
+        private Expression(String[] path) {
+            this.path = path;
+        }
+        
+        private Object evaluate(Scope scope) throws ServerException {
+            Object value = scope.lookup(path[0]);
+            for (int i = 1; i < path.length && value != null; i++) {
+                value = property(value, path[i]);
+            }
+            return value;
+        }
+        
+        private static Object property(Object value, String name) throws ServerException {
+            if (value instanceof Map) {
+                return ((Map) value).get(name);
+            }
+            if (value instanceof Map.Entry) {
+                switch (name) {
+                    case "key": return ((Map.Entry) value).getKey();
+                    case "value": return ((Map.Entry) value).getValue();
+                }
+            }
+            BeanPlan.Property property = BeanPlan.of(value.getClass()).getProperty(name);
+            return property != null ? property.get(value) : null;
+        }
+        
+    }
+    
+    
+    private interface Node {
+        void render(Scope scope, TemplateOutput out) throws ServerException;
+    }
+    
+    
+    private static final class Text implements Node {
+        
+        private final byte[] bytes;
+        
+        private Text(String text) {
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+        }
+        
+        @Override
+        public void render(Scope scope, TemplateOutput out) {
+            out.write(bytes);
+        }
+    }
+    
+    
+    private static final class Value implements Node {
+        
+        private final Expression expression;
+        private final boolean escape;
+        
+        private Value(Expression expression, boolean escape) {
+            this.expression = expression;
+            this.escape = escape;
+        }
+        
+        @Override
+        public void render(Scope scope, TemplateOutput out) throws ServerException {
+            Object value = expression.evaluate(scope);
+            if (value != null) {
+                out.write(value.toString(), escape);
+            }
+        }
+    }
+    
+    
+    private static final class If implements Node {
+        
+        private final Expression expression;
+        private final Node[] then;
+        private final Node[] otherwise;
+        
+        private If(Expression expression, Node[] then, Node[] otherwise) {
+            this.expression = expression;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+        
+        @Override
+        public void render(Scope scope, TemplateOutput out) throws ServerException {
+            Template.render(isTrue(expression.evaluate(scope)) ? then : otherwise, scope, out);
+        }
+    }
+    
+    
+    private static final class Each implements Node {
+        
+        private final Expression expression;
+        private final String variable;
+        private final Node[] body;
+        private final Node[] empty;
+        
+        private Each(Expression expression, String variable, Node[] body, Node[] empty) {
+            this.expression = expression;
+            this.variable = variable;
+            this.body = body;
+            this.empty = empty;
+        }
+        
+        @Override
+        public void render(Scope scope, TemplateOutput out) throws ServerException {
+            Object value = expression.evaluate(scope);
+            
+            if (value instanceof Map) {
+                value = ((Map) value).entrySet();
+            }
+            
+            boolean rendered = false;
+            scope.push(variable, null);
+            try {
+                if (value instanceof Iterable) {
+                    for (Object item : (Iterable) value) {
+                        scope.set(item);
+                        Template.render(body, scope, out);
+                        rendered = true;
+                    }
+                }
+                else if (value != null && value.getClass().isArray()) {
+                    int length = Array.getLength(value);
+                    for (int i = 0; i < length; i++) {
+                        scope.set(Array.get(value, i));
+                        Template.render(body, scope, out);
+                        rendered = true;
+                    }
+                }
+            }
+            finally {
+                scope.pop();
+            }
+            
+            if (!rendered) {
+                Template.render(empty, scope, out);
+            }
+        }
+    }
+    
+    
+    private static final class Include implements Node {
+        
+        private final String name;
+        
+        private Include(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public void render(Scope scope, TemplateOutput out) throws ServerException {
+            // Resolved on every render, so included templates can be
+            // reloaded on their own in development mode.
+            scope.templateManager.getTemplate(name).render(scope, out);
+        }
+    }
+    
+    
+    /**
+     * Turns a template source into nodes.
+     */
+    private static final class Parser {
+        
+        private static final Node[] NoNodes = new Node[0];
+        
+        private final String name;
+        private final String source;
+        private int pos = 0;
+        private boolean endedWithElse = false;
+        
+        private Parser(String name, String source) {
+            this.name = name;
+            this.source = source;
+        }
+        
+        /**
+         * Parses nodes until the end of the source or the end of the given 
+         * block.
+         * @param block the name of the block being parsed ("if" or "each") or
+         *        null for the top level.
+         */
+        private Node[] parse(String block) throws ServerException {
+            
+            List<Node> nodes = new ArrayList<>();
+            
+            while (true) {
+                int open = source.indexOf("{{", pos);
+                if (open < 0) {
+                    addText(nodes, source.substring(pos));
+                    pos = source.length();
+                    if (block != null) {
+                        throw error("Missing {{/" + block + "}}", pos);
+                    }
+                    return toArray(nodes);
+                }
+                addText(nodes, source.substring(pos, open));
+                
+                // Raw value: {{{name}}}
+                if (source.startsWith("{{{", open)) {
+                    int close = source.indexOf("}}}", open + 3);
+                    if (close < 0) {
+                        throw error("Missing }}}", open);
+                    }
+                    nodes.add(new Value(expression(source.substring(open + 3, close), open), false));
+                    pos = close + 3;
+                    continue;
+                }
+                
+                int close = source.indexOf("}}", open + 2);
+                if (close < 0) {
+                    throw error("Missing }}", open);
+                }
+                String tag = source.substring(open + 2, close).trim();
+                pos = close + 2;
+                
+                if (tag.startsWith("!")) {
+                    // comment
+                }
+                else if (tag.startsWith("#if ")) {
+                    Expression e = expression(tag.substring(4), open);
+                    Node[] then = parse("if");
+                    Node[] otherwise = endedWithElse ? parseElse("if") : NoNodes;
+                    nodes.add(new If(e, then, otherwise));
+                }
+                else if (tag.startsWith("#each ")) {
+                    String[] parts = tag.substring(6).trim().split("\\s+");
+                    if (parts.length != 3 || !parts[1].equals("as") || !isIdentifier(parts[2])) {
+                        throw error("Expected {{#each expression as name}}", open);
+                    }
+                    Expression e = expression(parts[0], open);
+                    Node[] body = parse("each");
+                    Node[] empty = endedWithElse ? parseElse("each") : NoNodes;
+                    nodes.add(new Each(e, parts[2], body, empty));
+                }
+                else if (tag.startsWith(">")) {
+                    String include = tag.substring(1).trim();
+                    if (include.length() == 0) {
+                        throw error("Missing template name", open);
+                    }
+                    nodes.add(new Include(include));
+                }
+                else if (tag.equals("else")) {
+                    if (block == null) {
+                        throw error("Unexpected {{else}}", open);
+                    }
+                    endedWithElse = true;
+                    return toArray(nodes);
+                }
+                else if (tag.startsWith("/")) {
+                    if (!tag.substring(1).trim().equals(block)) {
+                        throw error("Unexpected {{" + tag + "}}", open);
+                    }
+                    endedWithElse = false;
+                    return toArray(nodes);
+                }
+                else if (tag.startsWith("#")) {
+                    throw error("Unknown tag {{" + tag + "}}", open);
+                }
+                else {
+                    nodes.add(new Value(expression(tag, open), true));
+                }
+            }
+            
+        }
+        
+        private Node[] parseElse(String block) throws ServerException {
+            int start = pos;
+            Node[] nodes = parse(block);
+            if (endedWithElse) {
+                throw error("Duplicated {{else}}", start);
+            }
+            return nodes;
+        }
+        
+        private Expression expression(String s, int at) throws ServerException {
+            String[] path = s.trim().split("\\.", -1);
+            for (String part : path) {
+                if (!isIdentifier(part)) {
+                    throw error("Invalid expression \"" + s.trim() + "\"", at);
+                }
+            }
+            return new Expression(path);
+        }
+        
+        private static boolean isIdentifier(String s) {
+            if (s.length() == 0 || !Character.isJavaIdentifierStart(s.charAt(0))) {
+                return false;
+            }
+            for (int i = 1; i < s.length(); i++) {
+                if (!Character.isJavaIdentifierPart(s.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private static void addText(List<Node> nodes, String text) {
+            if (text.length() > 0) {
+                nodes.add(new Text(text));
+            }
+        }
+        
+        private static Node[] toArray(List<Node> nodes) {
+            return nodes.isEmpty() ? NoNodes : nodes.toArray(new Node[nodes.size()]);
+        }
+        
+        private ServerException error(String message, int at) {
+            int line = 1;
+            for (int i = 0; i < at && i < source.length(); i++) {
+                if (source.charAt(i) == '\n') line++;
+            }
+            return new ServerException(
+                "Template \"" + name + "\", line " + line + ": " + message + ".");
+        }
+        
+    }
+    
+}
@@ -0,0 +1,195 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Loads, compiles and caches Cinnamon templates. Templates are compiled on 
+ * first use and kept for the life of the application. In development mode,
+ * the template file is checked on every render and recompiled if it has 
+ * changed.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class TemplateManager {
+    
+    static final String TemplateDirectory = "/WEB-INF/templates/";
+    static final String TemplateExtension = ".html";
+    
+    private final ServletContext servletContext;
+    private final boolean development;
+    private final ConcurrentMap<String, CachedTemplate> templates = new ConcurrentHashMap<>();
+    
+    
+    TemplateManager(ServletContext servletContext, boolean development) {
+        this.servletContext = servletContext;
+        this.development = development;
+    }
+    
+    
+    /**
+     * Renders a template using the controller's model and writes it into
+     * the response, including its Content-Length header.
+     * @param name the template name, relative to the templates directory
+     *        and without extension.
+     * @param controller the controller that holds the values to render.
+     * @param httpServletResponse the response to write to.
+     * @throws ServerException if the template cannot be loaded or rendered.
+     * @throws IOException if an I/O error occurs.
+     */
+    void render(String name, Controller controller, HttpServletResponse httpServletResponse) 
+        throws ServerException, IOException {
+        
+        Template template = getTemplate(name);
+        TemplateOutput output = TemplateOutput.acquire();
+        
+        try {
+            template.render(new Template.Scope(controller, this), output);
+            
+            httpServletResponse.setContentLength(output.size());
+            try (OutputStream out = httpServletResponse.getOutputStream()) {
+                output.writeTo(out);
+                out.flush();
+            }
+        }
+        finally {
+            output.release();
+        }
+        
+    }
+    
+    
+    /**
+     * Returns a compiled template, loading it if it's not been loaded yet or,
+     * in development mode, if it's changed since it was loaded.
+     * @param name the template name.
+     * @return a compiled template.
+     * @throws ServerException if the template does not exist or contains 
+     *         errors.
+     */
+    Template getTemplate(String name) throws ServerException {
+        
+        CachedTemplate cached = templates.get(name);
+        
+        if (cached != null && (!development || cached.lastModified == lastModified(name))) {
+            return cached.template;
+        }
+        
+        // Two threads may compile the same template at the same time; both
+        // get the same result, so there's no need to lock.
+        long lastModified = development ? lastModified(name) : 0L;
+        cached = new CachedTemplate(Template.compile(name, load(name)), lastModified);
+        templates.put(name, cached);
+        
+        return cached.template;
+    }
+    
+    
+    private String path(String name) {
+        return TemplateDirectory + name + TemplateExtension;
+    }
+    
+    
+    /**
+     * Reads a template source.
+     */
+    private String load(String name) throws ServerException {
+        
+        try (InputStream in = servletContext.getResourceAsStream(path(name))) {
+            if (in == null) {
+                throw new ServerException(
+                    "Template \"" + path(name) + "\" was not found.");
+            }
+            
+            StringBuilder sb = new StringBuilder();
+            Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+            char[] chars = new char[4096];
+            int read;
+            while ((read = reader.read(chars)) != -1) {
+                sb.append(chars, 0, read);
+            }
+            return sb.toString();
+        }
+        catch (IOException e) {
+            throw new ServerException(
+                "Template \"" + path(name) + "\" cannot be read: " + e.getMessage(), e);
+        }
+        
+    }
+    
+    
+    /**
+     * Returns the last modification time of a template file, or 0 if it
+     * cannot be found.
+     */
+    private long lastModified(String name) {
+        
+        String realPath = servletContext.getRealPath(path(name));
+        if (realPath != null) {
+            return new File(realPath).lastModified();
+        }
+        
+        // The application may be running from a packed war file.
+        try {
+            URL url = servletContext.getResource(path(name));
+            return url != null ? url.openConnection().getLastModified() : 0L;
+        }
+        catch (IOException e) {
+            return 0L;
+        }
+        
+    }
+    
+    
+    private static final class CachedTemplate {
+        
+        private final Template template;
+        private final long lastModified;
+        
+        private CachedTemplate(Template template, long lastModified) {
+            this.template = template;
+            this.lastModified = lastModified;
+        }
+    }
+    
+}
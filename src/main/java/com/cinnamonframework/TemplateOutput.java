@@ -0,0 +1,195 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable UTF-8 output buffer for rendered templates. Every thread keeps
+ * one instance, so rendering a page does not allocate a new buffer unless
+ * the page is larger than any page rendered before by the same thread.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class TemplateOutput {
+    
+    static final int InitialSize = 16 * 1024;
+    
+    /**
+     * Buffers that grow beyond this size are not kept for reuse, so a
+     * single huge page does not pin its memory for the life of the thread.
+     */
+    static final int MaxRetainedSize = 1024 * 1024;
+    
+    private static final ThreadCache<TemplateOutput> outputs = new ThreadCache<>();
+    
+    private static final byte[] Amp = { '&', 'a', 'm', 'p', ';' };
+    private static final byte[] Lt = { '&', 'l', 't', ';' };
+    private static final byte[] Gt = { '&', 'g', 't', ';' };
+    private static final byte[] Quot = { '&', 'q', 'u', 'o', 't', ';' };
+    private static final byte[] Apos = { '&', '#', '3', '9', ';' };
+    
+    private byte[] buffer = new byte[InitialSize];
+    private int count = 0;
+    
+    
+    /**
+     * Returns the output buffer of the current thread, or a new one if the
+     * thread's buffer is already in use.
+     * @return an empty output buffer.
+     */
+    static TemplateOutput acquire() {
+        TemplateOutput output = outputs.take();
+        if (output == null) {
+            return new TemplateOutput();
+        }
+        output.count = 0;
+        return output;
+    }
+    
+    
+    /**
+     * Returns this buffer to its thread so it can be reused.
+     */
+    void release() {
+        if (buffer.length > MaxRetainedSize) {
+            buffer = new byte[InitialSize];
+        }
+        count = 0;
+        outputs.put(this);
+    }
+    
+    
+    /**
+     * Lets go of the buffers of all the threads, so the application can be
+     * unloaded. Buffers are not reused afterwards.
+     */
+    static void shutdown() {
+        outputs.close();
+    }
+    
+    
+    /**
+     * @return the number of bytes written.
+     */
+    int size() {
+        return count;
+    }
+    
+    
+    /**
+     * Writes the buffer content into a stream.
+     * @param out the target stream.
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, count);
+    }
+    
+    
+    private void ensure(int n) {
+        if (count + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + n));
+        }
+    }
+    
+    
+    void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+    
+    
+    /**
+     * Encodes a string as UTF-8, optionally escaping HTML special 
+     * characters: &amp; &lt; &gt; &quot; and '.
+     * @param s the string to write.
+     * @param escape true to escape HTML special characters.
+     */
+    void write(String s, boolean escape) {
+        
+        int length = s.length();
+        // Worst cases are an escaped &quot;, which takes 6 bytes per char,
+        // and a 3 byte UTF-8 sequence.
+        ensure(length * (escape ? 6 : 3));
+        
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            
+            if (c < 0x80) {
+                if (escape) {
+                    switch (c) {
+                        case '&': put(Amp); continue;
+                        case '<': put(Lt); continue;
+                        case '>': put(Gt); continue;
+                        case '"': put(Quot); continue;
+                        case '\'': put(Apos); continue;
+                    }
+                }
+                buffer[count++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length 
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[count++] = (byte) (0xf0 | (cp >> 18));
+                buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                // Lone surrogate, use the replacement character: U+FFFD.
+                buffer[count++] = (byte) 0xef;
+                buffer[count++] = (byte) 0xbf;
+                buffer[count++] = (byte) 0xbd;
+            }
+            else {
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        
+    }
+    
+    
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+    
+}
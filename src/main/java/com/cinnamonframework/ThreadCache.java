@@ -0,0 +1,107 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps one reusable object per thread, like a ThreadLocal, but lets go of
+ * the objects of all the threads at once.
+ * 
+ * Container threads outlive the application: objects left in a plain 
+ * ThreadLocal keep the application classes loaded after a redeploy until
+ * every thread dies. Here each thread keeps its object in a holder of a
+ * JDK class, and close empties every holder.
+ * 
+ * @param <T> the type of the objects.
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class ThreadCache<T> {
+    
+    private final ThreadLocal<AtomicReference<T>> local = new ThreadLocal<>();
+    private final Set<AtomicReference<T>> holders = Collections.newSetFromMap(
+        Collections.synchronizedMap(new WeakHashMap<AtomicReference<T>, Boolean>()));
+    private volatile boolean closed;
+    
+    
+    /**
+     * Takes the object of the current thread. The thread has none until 
+     * it's given back with put, so nested users get null and create their
+     * own.
+     * @return the object of the current thread, or null if it has none.
+     */
+    T take() {
+        AtomicReference<T> holder = local.get();
+        return holder != null ? holder.getAndSet(null) : null;
+    }
+    
+    
+    /**
+     * Keeps an object for the current thread, unless the thread has one 
+     * already or the cache is closed.
+     * @param value the object to keep.
+     */
+    void put(T value) {
+        
+        if (closed) {
+            local.remove();
+            return;
+        }
+        
+        AtomicReference<T> holder = local.get();
+        if (holder == null) {
+            holder = new AtomicReference<>();
+            local.set(holder);
+            holders.add(holder);
+        }
+        holder.compareAndSet(null, value);
+    }
+    
+    
+    /**
+     * Lets go of the objects of all the threads and stops keeping new ones.
+     */
+    void close() {
+        
+        closed = true;
+        local.remove();
+        synchronized (holders) {
+            for (AtomicReference<T> holder : holders) {
+                holder.set(null);
+            }
+            holders.clear();
+        }
+    }
+    
+}
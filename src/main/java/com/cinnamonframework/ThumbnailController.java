@@ -0,0 +1,105 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Built-in controller that serves resized versions of uploaded images. 
+ * Example:
+ * 
+ * /thumbnails?file=2014/05/photo.jpg&amp;size=small
+ * 
+ * The image is scaled down to fit in a square of the size's dimension, 
+ * keeping its aspect ratio. Only configured sizes can be requested. 
+ * Thumbnails are created on first access and served from the disk cache 
+ * afterwards.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+final class ThumbnailController extends Controller implements HttpServletResponseAware {
+    
+    /**
+     * Thumbnails do not change unless the original does, so browsers may 
+     * keep them for a day.
+     */
+    private static final String CacheControl = "public, max-age=86400";
+    
+    private final ThumbnailManager thumbnailManager;
+    private HttpServletResponse response;
+    
+    
+    ThumbnailController(ThumbnailManager thumbnailManager) {
+        this.thumbnailManager = thumbnailManager;
+    }
+    
+    
+    @Override
+    public void setHttpServletResponse(HttpServletResponse response) {
+        this.response = response;
+    }
+    
+    
+    public Result index() throws IOException {
+        
+        String fileName = request.getAsString("file");
+        ByteBuffer thumbnail = thumbnailManager.get(fileName, request.getAsString("size"));
+        
+        if (thumbnail == null) {
+            response.setStatus(Result.StatusCode.NotFound);
+            return text("Thumbnail not found.");
+        }
+        
+        response.setHeader("Cache-Control", CacheControl);
+        return custom(thumbnail, contentType(fileName));
+    }
+    
+    
+    /**
+     * @return the content type of the known image formats, or a generic 
+     *         one for the rest, so extensions are never echoed back.
+     */
+    private static String contentType(String fileName) {
+        String format = com.cinnamonframework.util.Files.getExtension(fileName).toLowerCase(Locale.ENGLISH);
+        if (DerivativeManager.isJpeg(format)) {
+            return "image/jpeg";
+        }
+        switch (format) {
+            case "png": return "image/png";
+            case "gif": return "image/gif";
+            default: return "application/octet-stream";
+        }
+    }
+    
+}
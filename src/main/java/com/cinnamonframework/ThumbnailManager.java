@@ -0,0 +1,380 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import com.cinnamonframework.util.Hashing;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+
+/**
+ * Resizes uploaded images on demand and keeps the results in a disk cache.
+ * Only the configured sizes can be requested, so the number of thumbnails 
+ * per image, and the work a client can cause, is bounded.
+ * 
+ * Every thumbnail is stored under a key computed from the source file name,
+ * its size and modification time, and the requested size; when the 
+ * source changes, the key changes too, and the old thumbnail is eventually
+ * evicted. The cache is bounded by its total size in bytes; the least
+ * recently used thumbnails are deleted first. After a restart, the usage 
+ * order is approximated using the files' modification times.
+ * 
+ * Thumbnails are returned already mapped into memory. The file is opened
+ * while it's still in the cache, so a thumbnail evicted (and deleted) 
+ * right after is still sent complete.
+ * 
+ * Concurrent requests for the same missing thumbnail are collapsed: the 
+ * first one resizes the image, the rest wait for its result.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class ThumbnailManager {
+    
+    static final long DefaultMaxCacheSize = 256L * 1024 * 1024;
+    
+    /**
+     * Times a thumbnail is created again if it's evicted before it can be
+     * opened, which happens only when the cache is very small.
+     */
+    private static final int MaxAttempts = 3;
+    
+    private static final String logger = ThumbnailManager.class.getName();
+    
+    private final Path sources;
+    private final Path directory;
+    private final Map<String, Integer> sizes;
+    private final long maxCacheSize;
+    
+    /**
+     * Cached thumbnails and their sizes in bytes, in access order. Guarded
+     * by itself.
+     */
+    private final LinkedHashMap<Path, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long cacheSize;
+    
+    private final ConcurrentMap<String, FutureTask<Void>> inProgress = new ConcurrentHashMap<>();
+    
+    
+    /**
+     * @param sources the uploads directory; only images under it can be 
+     *        resized.
+     * @param directory the directory where thumbnails are cached.
+     * @param sizes the size names that can be requested and their maximum
+     *        width and height in pixels.
+     * @param maxCacheSize the maximum size of the cache, in bytes.
+     * @throws IOException if the cache directory cannot be read.
+     */
+    ThumbnailManager(Path sources, Path directory, Map<String, Integer> sizes, long maxCacheSize) throws IOException {
+        this.sources = sources.toAbsolutePath().normalize();
+        this.directory = directory.toAbsolutePath().normalize();
+        this.sizes = sizes;
+        this.maxCacheSize = maxCacheSize;
+        
+        java.nio.file.Files.createDirectories(this.directory);
+        load();
+    }
+    
+    
+    /**
+     * Returns a thumbnail of one of the configured sizes, creating it if 
+     * it's not in the cache yet.
+     * @param fileName an image file name, relative to the uploads directory.
+     * @param size a size name.
+     * @return the thumbnail content, or null if the file does not exist, is
+     *         not a supported image or the size is not configured.
+     * @throws IOException if the thumbnail cannot be created.
+     */
+    ByteBuffer get(String fileName, String size) throws IOException {
+        
+        final Integer dimension = size != null ? sizes.get(size) : null;
+        if (fileName == null || dimension == null) {
+            return null;
+        }
+        
+        // Do not allow to escape the uploads directory with "..", nor to
+        // read the framework's working files, which start with a dot.
+        final Path source = sources.resolve(fileName).normalize();
+        if (!source.startsWith(sources) || isHidden(sources.relativize(source))
+            || !java.nio.file.Files.isRegularFile(source)) {
+            return null;
+        }
+        
+        final String format = com.cinnamonframework.util.Files.getExtension(
+            source.getFileName().toString()).toLowerCase(Locale.ENGLISH);
+        if (!isSupported(format)) {
+            return null;
+        }
+        
+        BasicFileAttributes attributes = java.nio.file.Files.readAttributes(source, BasicFileAttributes.class);
+        String key = key(sources.relativize(source).toString() + '\n' 
+            + attributes.size() + '\n' + attributes.lastModifiedTime().toMillis() + '\n'
+            + size + '=' + dimension);
+        final Path target = directory.resolve(key.substring(0, 2)).resolve(key + "." + format);
+        
+        for (int attempt = 0; attempt < MaxAttempts; attempt++) {
+            FileChannel channel = open(target);
+            if (channel == null) {
+                create(key, source, target, dimension, format);
+                channel = open(target);
+            }
+            if (channel != null) {
+                try {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+                finally {
+                    channel.close();
+                }
+            }
+        }
+        
+        throw new IOException("The thumbnail \"" + target + "\" was evicted before it could be sent. "
+            + "The thumbnails cache is too small.");
+    }
+    
+    
+    /**
+     * Creates a thumbnail, unless another thread is already creating it; in
+     * that case, waits for it to finish.
+     */
+    private void create(String key, final Path source, final Path target, 
+            final int dimension, final String format) throws IOException {
+        
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                // It might have been created while we were getting here.
+                if (!touch(target)) {
+                    create(source, target, dimension, dimension, format);
+                }
+                return null;
+            }
+        });
+        
+        FutureTask<Void> running = inProgress.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            }
+            finally {
+                inProgress.remove(key, task);
+            }
+            running = task;
+        }
+        
+        try {
+            running.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a thumbnail.");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        
+    }
+    
+    
+    /**
+     * @return the current size of the cache, in bytes.
+     */
+    long getCacheSize() {
+        synchronized (entries) {
+            return cacheSize;
+        }
+    }
+    
+    
+    private void create(Path source, Path target, int width, int height, String format) throws IOException {
+        
+        BufferedImage image = ImageIO.read(source.toFile());
+        if (image == null) {
+            throw new IOException("\"" + source + "\" is not a supported image.");
+        }
+        
+        java.nio.file.Files.createDirectories(target.getParent());
+        DerivativeManager.write(DerivativeManager.resize(image, width, height, format), format, target);
+        add(target, java.nio.file.Files.size(target));
+        
+    }
+    
+    
+    /**
+     * Opens a cached thumbnail and marks it as recently used. Evicted 
+     * thumbnails are deleted only after they leave the cache, so the file
+     * exists when it's opened.
+     * @return an open channel or null if the thumbnail is not in the cache.
+     */
+    private FileChannel open(Path target) throws IOException {
+        synchronized (entries) {
+            if (entries.get(target) == null) {
+                return null;
+            }
+            try {
+                return FileChannel.open(target, StandardOpenOption.READ);
+            }
+            // Deleted by somebody else
+            catch (NoSuchFileException e) {
+                cacheSize -= entries.remove(target);
+                return null;
+            }
+        }
+    }
+    
+    
+    /**
+     * Marks a thumbnail as recently used.
+     * @return true if the thumbnail is in the cache.
+     */
+    private boolean touch(Path target) {
+        synchronized (entries) {
+            return entries.get(target) != null;
+        }
+    }
+    
+    
+    /**
+     * Adds a thumbnail to the cache and evicts the least recently used ones
+     * if the cache is too big. Files are deleted outside the lock.
+     */
+    private void add(Path target, long size) {
+        
+        List<Path> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Long previous = entries.put(target, size);
+            cacheSize += size - (previous != null ? previous : 0);
+            
+            Iterator<Map.Entry<Path, Long>> it = entries.entrySet().iterator();
+            while (cacheSize > maxCacheSize && entries.size() > 1) {
+                Map.Entry<Path, Long> eldest = it.next();
+                cacheSize -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        
+        for (Path path : evicted) {
+            try {
+                java.nio.file.Files.deleteIfExists(path);
+            }
+            catch (IOException e) {
+                Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+        
+    }
+    
+    
+    /**
+     * Registers the thumbnails left by a previous run, oldest first.
+     */
+    private void load() throws IOException {
+        
+        final List<Object[]> found = new ArrayList<>();
+        java.nio.file.Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (isSupported(com.cinnamonframework.util.Files.getExtension(
+                        file.getFileName().toString()))) {
+                    found.add(new Object[] { file, attributes.lastModifiedTime().toMillis(), attributes.size() });
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        
+        Collections.sort(found, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                return Long.compare((Long) a[1], (Long) b[1]);
+            }
+        });
+        
+        for (Object[] entry : found) {
+            add((Path) entry[0], (Long) entry[2]);
+        }
+        
+    }
+    
+    
+    /**
+     * @return true if any part of a relative path starts with a dot.
+     */
+    private static boolean isHidden(Path path) {
+        for (Path part : path) {
+            if (part.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    
+    private static boolean isSupported(String format) {
+        return format.equals("jpg") || format.equals("jpeg") 
+            || format.equals("png") || format.equals("gif");
+    }
+    
+    
+    private static String key(String s) {
+        return Hashing.sha256(s);
+    }
+    
+}
@@ -0,0 +1,793 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import com.cinnamonframework.util.Files;
+import com.cinnamonframework.util.Hex;
+import com.cinnamonframework.util.Strings;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.Part;
+
+/**
+ * Processes uploaded files. Files are copied from the container's multipart
+ * storage straight into their final location under the uploads directory,
+ * using channel transfers, so memory use does not depend on the file size.
+ * A SHA-256 digest of every file is computed during the copy.
+ * 
+ * Optionally, files can be deduplicated: they are stored under 
+ * store/ab/abcdef....ext, named after their digest, so a file uploaded many
+ * times is stored only once and shared by all its uploads.
+ * 
+ * Uploads are processed lazily, the first time the controller asks for 
+ * them. Files that exceed the maximum size or whose type is not allowed are
+ * not saved; a message is added for them using the form field name as key
+ * and one of these localizable messages:
+ * <ul>
+ * <li>exception.upload.fileTypeNotAllowed</li>
+ * <li>exception.upload.fileMaxSize</li>
+ * <li>exception.upload.fileCannotBeSaved</li>
+ * </ul>
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+class UploadManager {
+    
+    static final String FileTypeNotAllowed = "exception.upload.fileTypeNotAllowed";
+    static final String FileMaxSize = "exception.upload.fileMaxSize";
+    static final String FileCannotBeSaved = "exception.upload.fileCannotBeSaved";
+    
+    static final int MaxFileNameLength = 64;
+    static final long DefaultMaxFileSize = 10 * 1024 * 1024;
+    static final String DefaultAllowedTypes = 
+        "image/jpeg=jpg, image/png=png, image/gif=gif, application/pdf=pdf";
+    
+    private static final String logger = UploadManager.class.getName();
+    private static final UploadedFile[] NoFiles = new UploadedFile[0];
+    
+    /**
+     * Bytes moved per transfer call. Large enough to keep the number of
+     * system calls low, small enough to check limits often.
+     */
+    private static final long TransferSize = 1024 * 1024;
+    
+    /**
+     * Bytes mapped into memory at a time when copying from a file.
+     */
+    private static final long MapSize = 64 * 1024 * 1024;
+    
+    /**
+     * Number of file names whose suffix counters are kept in memory.
+     */
+    private static final int MaxNameCounters = 10000;
+    
+    static final String DigestAlgorithm = "SHA-256";
+    static final String StoreDirectory = "store";
+    
+    private final Path directory;
+    private final long maxFileSize;
+    private final Map<String, String> allowedTypes;
+    private final boolean deduplicate;
+    private final DerivativeManager derivativeManager;
+    
+    /**
+     * False once the uploads file system turns out not to support hard 
+     * links.
+     */
+    private volatile boolean links = true;
+    
+    /**
+     * Threads used by UploadedFile.moveAll, created on first use. Guarded
+     * by this.
+     */
+    private ExecutorService movePool;
+    private boolean shutdown;
+    
+    /**
+     * Last numeric suffix used per file name (directory, name and 
+     * extension). Only the most recently used names are kept; forgotten 
+     * names are seeded again from the directory content.
+     */
+    private final Map<Path, AtomicInteger> nameCounters = Collections.synchronizedMap(
+        new LinkedHashMap<Path, AtomicInteger>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, AtomicInteger> eldest) {
+                return size() > MaxNameCounters;
+            }
+        });
+    
+    
+    /**
+     * @param directory the directory where files are saved.
+     * @param maxFileSize the maximum size of a single file, in bytes.
+     * @param allowedTypes a comma separated list of allowed content types
+     *        and their file extensions, for example: 
+     *        "image/jpeg=jpg, application/pdf=pdf".
+     * @param deduplicate true to keep files in a content-addressed store,
+     *        where files with the same content are stored only once.
+     * @param derivativeManager creates resized versions of uploaded images,
+     *        or null to keep only the original files.
+     */
+    UploadManager(Path directory, long maxFileSize, String allowedTypes, 
+            boolean deduplicate, DerivativeManager derivativeManager) {
+        this.directory = directory.toAbsolutePath();
+        this.maxFileSize = maxFileSize;
+        this.allowedTypes = parseAllowedTypes(allowedTypes);
+        this.deduplicate = deduplicate;
+        this.derivativeManager = derivativeManager;
+    }
+    
+    
+    /**
+     * Returns the threads used to move many files at once. Moves across 
+     * file systems spend most of their time waiting for I/O, so a few more
+     * threads than cores are used.
+     * @return the move threads, or null after shutdown.
+     */
+    synchronized ExecutorService getMovePool() {
+        if (movePool == null && !shutdown) {
+            final AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                0, Runtime.getRuntime().availableProcessors() * 2, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "cinnamon-file-mover-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    // When all threads are busy, or the pool was shut down
+                    // after it was handed out, the caller moves the file.
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        r.run();
+                    }
+                });
+            movePool = pool;
+        }
+        return movePool;
+    }
+    
+    
+    /**
+     * Stops the background work of uploads: image derivatives and file 
+     * moves.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        if (movePool != null) {
+            movePool.shutdownNow();
+        }
+        if (derivativeManager != null) {
+            derivativeManager.shutdown();
+        }
+    }
+    
+    
+    /**
+     * @return the directory where files are saved.
+     */
+    Path getDirectory() {
+        return directory;
+    }
+    
+    
+    /**
+     * Returns the uploads of the given request, to be processed only when
+     * they are requested.
+     * @param httpServletRequest the request that contains the files.
+     * @param messages where problems with the uploaded files are reported.
+     * @return the pending uploads or null if this is not a multipart request.
+     */
+    PendingUploads defer(HttpServletRequest httpServletRequest, Messages messages) {
+        if (!isMultipart(httpServletRequest)) {
+            return null;
+        }
+        return new PendingUploads(this, httpServletRequest, messages);
+    }
+    
+    
+    /**
+     * @param httpServletRequest
+     * @return true if the request is a multipart request, which may contain
+     *         uploaded files.
+     */
+    static boolean isMultipart(HttpServletRequest httpServletRequest) {
+        String contentType = httpServletRequest.getContentType();
+        return contentType != null 
+            && contentType.toLowerCase(Locale.ENGLISH).startsWith("multipart/form-data");
+    }
+    
+    
+    /**
+     * Processes all uploaded files in the request and saves them into the
+     * uploads directory.
+     * @return an empty array if no files were found.
+     */
+    UploadedFile[] process(HttpServletRequest httpServletRequest, Messages messages) {
+        
+        List<UploadedFile> files = new ArrayList<>();
+        
+        try {
+            for (Part part : httpServletRequest.getParts()) {
+                
+                // Regular form fields have no content type nor file name.
+                if (part.getContentType() == null || part.getSubmittedFileName() == null) {
+                    continue;
+                }
+                
+                // The developer may check if there are files uploaded; if 
+                // there are no, then he can send a message to the user telling
+                // him that something went wrong and that he should check for
+                // conditions like file size and file type.
+                UploadedFile file = process(part, messages);
+                if (file != null) {
+                    files.add(file);
+                }
+            }
+        }
+        // Thrown if file or request size exceed the container limits
+        catch (IllegalStateException e) {
+            Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
+            messages.addLocalizedMessage(FileMaxSize, FileMaxSize);
+        }
+        catch (IOException e) {
+            Logger.getLogger(logger).log(Level.SEVERE, e.getMessage(), e);
+            messages.addLocalizedMessage(FileCannotBeSaved, FileCannotBeSaved);
+        }
+        // Thrown if this is not a multipart request or the servlet has no
+        // multipart configuration.
+        catch (ServletException e) {
+            Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
+        }
+        
+        return files.isEmpty() ? NoFiles : files.toArray(new UploadedFile[files.size()]);
+    }
+    
+    
+    /**
+     * Validates and saves a single part.
+     * @return the saved file or null if it was empty or rejected.
+     */
+    private UploadedFile process(Part part, Messages messages) {
+        
+        String contentType = baseType(part.getContentType());
+        
+        if (!allowedTypes.containsKey(contentType)) {
+            messages.addLocalizedMessage(part.getName(), FileTypeNotAllowed);
+            return null;
+        }
+        if (part.getSize() > maxFileSize) {
+            messages.addLocalizedMessage(part.getName(), FileMaxSize);
+            return null;
+        }
+        if (part.getSize() <= 0) {
+            return null;
+        }
+        
+        UploadedFile file = new UploadedFile();
+        file.setName(part.getName());
+        file.setSubmittedFileName(part.getSubmittedFileName());
+        file.setContentType(contentType);
+        
+        try {
+            save(part, file);
+            // The original is safely stored; derivatives are created in 
+            // the background.
+            if (derivativeManager != null) {
+                derivativeManager.submit(file);
+            }
+            return file;
+        }
+        catch (FileTooLargeException e) {
+            messages.addLocalizedMessage(part.getName(), FileMaxSize);
+        }
+        catch (IOException e) {
+            Logger.getLogger(logger).log(Level.SEVERE, e.getMessage(), e);
+            messages.addLocalizedMessage(part.getName(), FileCannotBeSaved);
+        }
+        
+        return null;
+    }
+    
+    
+    /**
+     * Copies a part into its final location. Data is written to a temporary
+     * file that gets its final name only once complete, so other requests 
+     * do not see a partially written file (see publish for the exception).
+     * The content digest is computed while the data is being copied, so 
+     * the file is never read twice.
+     * 
+     * When files are deduplicated, the final location depends on the 
+     * digest; if a file with the same content was already stored, the new
+     * copy is simply discarded.
+     */
+    private void save(Part part, UploadedFile file) throws IOException {
+        
+        java.nio.file.Files.createDirectories(directory);
+        Path temp = createTempFile(directory, ".upload-");
+        
+        try {
+            MessageDigest digest = newDigest();
+            long size;
+            try (InputStream in = part.getInputStream();
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                
+                if (in instanceof FileInputStream) {
+                    size = transfer(((FileInputStream) in).getChannel(), out, digest);
+                }
+                else {
+                    size = transfer(Channels.newChannel(new DigestInputStream(in, digest)), out);
+                }
+            }
+            
+            place(temp, file, Hex.encode(digest.digest()), size);
+        }
+        finally {
+            deleteQuietly(temp);
+        }
+        
+    }
+    
+    
+    /**
+     * Moves a complete file into its final location and fills in the 
+     * uploaded file information. See save.
+     * @param temp a file in the uploads directory; it's moved or discarded.
+     */
+    private void place(Path temp, UploadedFile file, String hash, long size) throws IOException {
+        
+        Path target;
+        
+        if (deduplicate) {
+            target = contentAddressedPath(hash, extension(file));
+            if (!java.nio.file.Files.exists(target)) {
+                java.nio.file.Files.createDirectories(target.getParent());
+                // Two requests storing the same content at the same time
+                // move identical files, so replacing is harmless.
+                java.nio.file.Files.move(temp, target, 
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        else {
+            target = assignNameForUploadedFile(file, temp);
+        }
+        
+        file.setSize(size);
+        file.setDigest(hash);
+        file.setShared(deduplicate);
+        file.setPath(target);
+        file.setDirectory(directory);
+        file.setUploadManager(this);
+        file.setFileName(directory.relativize(target).toString().replace('\\', '/'));
+    }
+    
+    
+    /**
+     * Stores a file that was received by other means than a multipart 
+     * request, like a resumable upload, and starts the creation of its 
+     * derivatives.
+     * @param temp a complete file in the uploads directory; it's moved or
+     *        deleted.
+     * @param submittedFileName the name given by the client.
+     * @param contentType an allowed content type.
+     * @param hash the content digest, in hexadecimal.
+     * @return the stored file.
+     * @throws IOException if the file cannot be stored.
+     */
+    UploadedFile store(Path temp, String submittedFileName, String contentType, String hash) throws IOException {
+        
+        UploadedFile file = new UploadedFile();
+        file.setSubmittedFileName(submittedFileName);
+        file.setContentType(baseType(contentType));
+        
+        try {
+            place(temp, file, hash, java.nio.file.Files.size(temp));
+        }
+        finally {
+            deleteQuietly(temp);
+        }
+        
+        if (derivativeManager != null) {
+            derivativeManager.submit(file);
+        }
+        return file;
+    }
+    
+    
+    /**
+     * @param contentType a content type, possibly with parameters.
+     * @return true if files with this content type can be uploaded.
+     */
+    boolean isAllowed(String contentType) {
+        return contentType != null && allowedTypes.containsKey(baseType(contentType));
+    }
+    
+    
+    /**
+     * Copies data from a file channel. The source is mapped into memory in 
+     * chunks, so every byte is read once and used both to update the digest
+     * and to write the target, without going through a heap buffer.
+     */
+    private long transfer(FileChannel in, FileChannel out, MessageDigest digest) throws IOException {
+        long start = in.position();
+        long size = in.size() - start;
+        if (size > maxFileSize) {
+            throw new FileTooLargeException();
+        }
+        for (long position = 0; position < size; position += MapSize) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 
+                start + position, Math.min(MapSize, size - position));
+            digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        return size;
+    }
+    
+    
+    /**
+     * Copies data from a stream, checking the size limit as bytes arrive.
+     */
+    private long transfer(ReadableByteChannel in, FileChannel out) throws IOException {
+        long position = 0;
+        long read;
+        while ((read = out.transferFrom(in, position, TransferSize)) > 0) {
+            position += read;
+            if (position > maxFileSize) {
+                throw new FileTooLargeException();
+            }
+        }
+        return position;
+    }
+    
+    
+    /**
+     * Returns the location of a file in the content-addressed store: 
+     * store/ab/abcdef....ext, where abcdef... is the content digest.
+     */
+    private Path contentAddressedPath(String hash, String extension) {
+        return directory
+            .resolve(StoreDirectory)
+            .resolve(hash.substring(0, 2))
+            .resolve(extension.length() > 0 ? hash + "." + extension : hash);
+    }
+    
+    
+    /**
+     * Returns the preferred extension for the file content type or, if there
+     * isn't one, the extension of the submitted file name.
+     */
+    private String extension(UploadedFile file) {
+        String extension = allowedTypes.get(file.getContentType());
+        if (extension == null) {
+            extension = Strings.toSlug(Files.getExtension(file.getSubmittedFileName()));
+        }
+        return extension;
+    }
+    
+    
+    /**
+     * Creates an empty temporary file in a directory. Unlike 
+     * Files.createTempFile, which makes it readable by its owner only, the 
+     * file gets the default permissions of new files, so it can be 
+     * published as is and served by other processes, like a web server.
+     * @param directory where the file is created.
+     * @param prefix the start of the file name, like ".upload-".
+     * @return the new file, ending in .tmp.
+     * @throws IOException if the file cannot be created.
+     */
+    static Path createTempFile(Path directory, String prefix) throws IOException {
+        
+        while (true) {
+            Path temp = directory.resolve(prefix 
+                + Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + ".tmp");
+            try {
+                return java.nio.file.Files.createFile(temp);
+            }
+            catch (FileAlreadyExistsException e) {
+                // Try another name
+            }
+        }
+    }
+    
+    
+    static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(DigestAlgorithm);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    
+    /**
+     * Uses the uploaded file's information to assign a suitable name for the
+     * recently uploaded file, and publishes the file with that name. The 
+     * server will try to use the submittedFileName by removing non-safe web
+     * characters and by shortening it. If a file with that name exists 
+     * already, a numeric suffix is appended to the name: photo.jpg, 
+     * photo-1.jpg, photo-2.jpg...
+     * 
+     * Publishing a name fails if a file with that name exists, so two 
+     * uploads never get the same name. Suffixes come from a counter kept 
+     * per name, which is seeded from the directory content the first time
+     * the name is used; afterwards, assigning a name does not depend on how
+     * many files with the same name exist.
+     * 
+     * @param file
+     * @param temp the complete file; it's either left in place or moved.
+     * @return the absolute path for the file.
+     */
+    private Path assignNameForUploadedFile(UploadedFile file, Path temp) throws IOException {
+        
+        Calendar calendar = new GregorianCalendar();
+        
+        // Create the upload directory structure
+        Path path = directory
+            .resolve(String.valueOf(calendar.get(Calendar.YEAR)))
+            .resolve(String.valueOf(calendar.get(Calendar.MONTH) + 1));
+        java.nio.file.Files.createDirectories(path);
+        
+        // Create a web safe name for this file, you know, no spaces, no
+        // strange characters, max length, and so on.
+        String submitted = file.getSubmittedFileName();
+        String name = Strings.toSlug(Files.removeExtension(submitted));
+        String extension = extension(file);
+        if (name.length() + extension.length() + 1 > MaxFileNameLength) {
+            // minus 1 to remove the extra character between name and extension: "."
+            name = name.substring(0, 
+                Math.max(0, MaxFileNameLength - extension.length() - 1));
+        }
+        
+        // File name may be empty if the value of submittedFileName is empty,
+        // assign a time stamp as name.
+        if (name.length() == 0) {
+            name = String.valueOf(new Date().getTime());
+        }
+        
+        String suffix = extension.length() > 0 ? "." + extension : "";
+        Path key = path.resolve(name + suffix);
+        
+        AtomicInteger counter = nameCounters.get(key);
+        if (counter == null) {
+            AtomicInteger seeded = new AtomicInteger(highestSuffix(path, name, suffix));
+            synchronized (nameCounters) {
+                counter = nameCounters.get(key);
+                if (counter == null) {
+                    counter = seeded;
+                    nameCounters.put(key, counter);
+                }
+            }
+        }
+        
+        // Files created by somebody else since the counter was seeded are
+        // simply skipped.
+        while (true) {
+            int i = counter.incrementAndGet();
+            Path candidate = i == 0 ? key : path.resolve(name + "-" + i + suffix);
+            try {
+                return publish(temp, candidate);
+            }
+            catch (FileAlreadyExistsException e) {
+                // try the next suffix
+            }
+        }
+    }
+    
+    
+    /**
+     * Gives a complete file a new name, failing if the name is taken. A 
+     * hard link does both atomically, so the name never refers to an empty
+     * or partial file. On file systems without hard links, the name is 
+     * reserved with an empty file that is then atomically replaced; there,
+     * other requests may briefly see an empty file.
+     * @param temp the complete file; it's either left in place or moved.
+     * @param target the new name.
+     * @return the target.
+     * @throws FileAlreadyExistsException if the name is taken.
+     */
+    private Path publish(Path temp, Path target) throws IOException {
+        
+        if (links) {
+            try {
+                return java.nio.file.Files.createLink(target, temp);
+            }
+            catch (FileAlreadyExistsException e) {
+                throw e;
+            }
+            catch (UnsupportedOperationException | FileSystemException e) {
+                Logger.getLogger(logger).log(Level.FINE, 
+                    "Cannot link \"{0}\", reserving its name instead: {1}", new Object[] { target, e });
+            }
+        }
+        
+        java.nio.file.Files.createFile(target);
+        try {
+            java.nio.file.Files.move(temp, target, 
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            deleteQuietly(target);
+            throw e;
+        }
+        
+        // The name could be created but not linked, so this file system
+        // has no hard links.
+        links = false;
+        return target;
+    }
+    
+    
+    /**
+     * Finds the highest numeric suffix in use for a name. Reads the 
+     * directory once.
+     * @return the highest suffix, 0 if only the name without suffix is 
+     *         used, or -1 if the name is not used at all.
+     */
+    private static int highestSuffix(Path path, String name, String suffix) throws IOException {
+        
+        int highest = -1;
+        
+        // Names are slugs and extensions come from the allowed types, so 
+        // they do not contain glob special characters.
+        try (DirectoryStream<Path> stream = java.nio.file.Files.newDirectoryStream(path, name + "*" + suffix)) {
+            for (Path p : stream) {
+                String s = p.getFileName().toString();
+                s = s.substring(name.length(), s.length() - suffix.length());
+                if (s.isEmpty()) {
+                    highest = Math.max(highest, 0);
+                }
+                else if (s.length() > 1 && s.length() <= 10 && s.charAt(0) == '-' && isDigits(s, 1)) {
+                    highest = Math.max(highest, Integer.parseInt(s.substring(1)));
+                }
+            }
+        }
+        
+        return highest;
+    }
+    
+    
+    private static boolean isDigits(String s, int start) {
+        for (int i = start; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
+    /**
+     * Returns the content type without parameters, in lower case.
+     */
+    private static String baseType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        if (semicolon >= 0) {
+            contentType = contentType.substring(0, semicolon);
+        }
+        return contentType.trim().toLowerCase(Locale.ENGLISH);
+    }
+    
+    
+    private static Map<String, String> parseAllowedTypes(String allowedTypes) {
+        Map<String, String> types = new LinkedHashMap<>();
+        for (String entry : allowedTypes.split(",")) {
+            String[] pair = entry.split("=");
+            if (pair.length == 2 && pair[0].trim().length() > 0) {
+                types.put(baseType(pair[0]), pair[1].trim());
+            }
+        }
+        return Collections.unmodifiableMap(types);
+    }
+    
+    
+    private static void deleteQuietly(Path path) {
+        if (path != null) {
+            try {
+                java.nio.file.Files.deleteIfExists(path);
+            }
+            catch (IOException e) {
+                Logger.getLogger(logger).log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Thrown when a file goes beyond the maximum size while it's being 
+     * saved.
+     */
+    private static class FileTooLargeException extends IOException {
+    }
+    
+    
+    /**
+     * Uploads waiting to be processed. They are processed only once, the 
+     * first time they are requested.
+     */
+    static final class PendingUploads {
+        
+        private final UploadManager uploadManager;
+        private final HttpServletRequest httpServletRequest;
+        private final Messages messages;
+        
+        private PendingUploads(UploadManager uploadManager, 
+            HttpServletRequest httpServletRequest, Messages messages) {
+            this.uploadManager = uploadManager;
+            this.httpServletRequest = httpServletRequest;
+            this.messages = messages;
+        }
+        
+        UploadedFile[] process() {
+            return uploadManager.process(httpServletRequest, messages);
+        }
+    }
+    
+}
@@ -30,6 +30,31 @@
  */
 package com.cinnamonframework;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -37,11 +62,37 @@ package com.cinnamonframework;
  */
 public class UploadedFile {
     
+    private static final String logger = UploadedFile.class.getName();
+    
     private String name; // the HTML form input name
     private String submittedFileName;
     private String contentType;
     private long size;
     private String fileName;
+    private Path path;
+    private String digest;
+    private boolean shared;
+    private Path directory; // the uploads directory
+    private UploadManager uploadManager; // the manager that saved this file
+    private Set<String> derivativeSizes = Collections.emptySet();
+    private volatile DerivativeStatus derivativeStatus = DerivativeStatus.None;
+    
+    /**
+     * The state of the resized versions of an uploaded image.
+     */
+    public enum DerivativeStatus {
+        /** The file is not an image or derivatives are not enabled. */
+        None,
+        /** Derivatives are waiting to be created. */
+        Pending,
+        /** Derivatives are being created. */
+        Running,
+        /** All derivatives are available. */
+        Done,
+        /** Derivatives could not be created, or were skipped because too 
+         *  many images were waiting to be resized. */
+        Failed
+    }
 
     /**
      * @return the name
@@ -125,7 +176,7 @@ public class UploadedFile {
     }
 
     /**
-     * @return the fileName
+     * @return the fileName, relative to the uploads directory
      */
     public String getFileName() {
         return fileName;
@@ -138,6 +189,134 @@ public class UploadedFile {
         this.fileName = fileName;
     }
 
+    /**
+     * @return the absolute path of the saved file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @param path the path to set
+     */
+    void setPath(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the file content, as a lower case 
+     * hexadecimal string. It's computed while the file is being saved.
+     * @return the content digest
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @param digest the digest to set
+     */
+    void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Returns true if this file is kept in the content-addressed store, 
+     * where the same file may be referenced by other uploads.
+     * @return true if this file may be shared with other uploads
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * @param shared the shared to set
+     */
+    void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Returns the state of the resized versions of this file. Derivatives
+     * are created in the background, so they may not exist yet when the
+     * request that uploaded the file is processed.
+     * @return the derivatives status
+     */
+    public DerivativeStatus getDerivativeStatus() {
+        return derivativeStatus;
+    }
+
+    /**
+     * @param derivativeStatus the derivativeStatus to set
+     */
+    void setDerivativeStatus(DerivativeStatus derivativeStatus) {
+        this.derivativeStatus = derivativeStatus;
+    }
+
+    /**
+     * @return the names of the sizes created for this file
+     */
+    public Set<String> getDerivativeSizes() {
+        return derivativeSizes;
+    }
+
+    /**
+     * @param derivativeSizes the derivativeSizes to set
+     */
+    void setDerivativeSizes(Set<String> derivativeSizes) {
+        this.derivativeSizes = derivativeSizes;
+    }
+
+    /**
+     * Returns the path of a resized version of this file. The file exists
+     * only when the derivative status is Done.
+     * @param size a size name, like "small".
+     * @return the derivative path or null if the size does not exist.
+     */
+    public Path getDerivativePath(String size) {
+        if (path == null || !derivativeSizes.contains(size)) {
+            return null;
+        }
+        return DerivativeManager.derivativePath(directory, path, size);
+    }
+
+    /**
+     * Returns the file name of a resized version of this file, relative to
+     * the uploads directory.
+     * @param size a size name, like "small".
+     * @return the derivative file name or null if the size does not exist.
+     */
+    public String getDerivativeFileName(String size) {
+        if (path == null || !derivativeSizes.contains(size)) {
+            return null;
+        }
+        Path derivative = DerivativeManager.derivativePath(directory, path, size);
+        if (directory != null && derivative.startsWith(directory)) {
+            return directory.relativize(derivative).toString().replace('\\', '/');
+        }
+        return derivative.toString();
+    }
+
+    /**
+     * @return the uploads directory
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param uploadManager the manager that saved this file
+     */
+    void setUploadManager(UploadManager uploadManager) {
+        this.uploadManager = uploadManager;
+    }
+
+    /**
+     * @param directory the uploads directory
+     */
+    void setDirectory(Path directory) {
+        this.directory = directory;
+    }
+
     /**
      * @return the submittedFileName
      */
@@ -153,16 +332,263 @@ public class UploadedFile {
     }
 
     
-    void moveTo(String targetDir) {
+    /**
+     * Moves this file, and its derivatives, into another directory, keeping
+     * its name. On the same file system the file is just renamed, so no data
+     * is copied regardless of its size; across file systems the file is 
+     * copied with channel transfers. The file appears in the target 
+     * directory only when it's complete.
+     * 
+     * Shared files stay in the content-addressed store for the other 
+     * uploads that reference them; this upload gets its own copy of the 
+     * content and stops being shared, so changing it does not change the
+     * other uploads. Derivatives that are still being created are not 
+     * moved.
+     * 
+     * @param targetDir the target directory, created if it does not exist.
+     *        Relative directories are resolved against the uploads 
+     *        directory.
+     * @throws java.nio.file.FileAlreadyExistsException if the target 
+     *         directory contains a file with the same name.
+     * @throws IOException if the file cannot be moved.
+     */
+    public void moveTo(String targetDir) throws IOException {
+        if (targetDir == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        Path dir = directory != null ? directory.resolve(targetDir) : Paths.get(targetDir);
+        java.nio.file.Files.createDirectories(dir);
+        relocate(dir.resolve(getExistingPath().getFileName()));
+    }
+    
+    /**
+     * Renames this file, and its derivatives, in its current directory. See
+     * moveTo for details.
+     * @param name the new file name, including its extension.
+     * @throws java.nio.file.FileAlreadyExistsException if a file with the 
+     *         same name exists.
+     * @throws IOException if the file cannot be renamed.
+     * @throws IllegalArgumentException if name contains a directory.
+     */
+    public void rename(String name) throws IOException {
+        if (name == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        Path target = getExistingPath().resolveSibling(name);
+        if (!target.getParent().equals(path.getParent()) || name.isEmpty()) {
+            throw new IllegalArgumentException("\"" + name + "\" is not a valid file name.");
+        }
+        relocate(target);
+    }
+    
+    /**
+     * Deletes this file and its derivatives. Shared files are kept in the 
+     * content-addressed store, since other uploads may reference them; 
+     * only this upload's reference is dropped.
+     * @throws IOException if the file cannot be deleted.
+     */
+    public void delete() throws IOException {
+        Path current = getExistingPath();
         
+        if (!shared) {
+            for (String size : derivativeSizes) {
+                java.nio.file.Files.deleteIfExists(DerivativeManager.derivativePath(directory, current, size));
+            }
+            java.nio.file.Files.deleteIfExists(current);
+        }
+        
+        path = null;
+        fileName = null;
+        shared = false;
+        derivativeSizes = Collections.emptySet();
     }
     
-    void rename(String name) {
+    /**
+     * Moves many files into a directory in parallel. Every file is 
+     * attempted even if some of them fail.
+     * @param files the files to move.
+     * @param targetDir the target directory; see moveTo.
+     * @throws IOException with the first failure; other failures are 
+     *         attached as suppressed exceptions.
+     */
+    public static void moveAll(Collection<UploadedFile> files, final String targetDir) throws IOException {
+        if (files == null || targetDir == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        List<Callable<Void>> tasks = new ArrayList<>(files.size());
+        for (final UploadedFile file : files) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    file.moveTo(targetDir);
+                    return null;
+                }
+            });
+        }
+        
+        // invokeAll returns when every task is done, so get does not block.
+        List<Future<Void>> futures;
+        try {
+            ExecutorService pool = null;
+            for (UploadedFile file : files) {
+                if (file.uploadManager != null) {
+                    pool = file.uploadManager.getMovePool();
+                    break;
+                }
+            }
+            // Without a pool (files not saved by an upload manager, or the
+            // application is stopping) files are moved one at a time.
+            if (pool == null) {
+                futures = new ArrayList<>(tasks.size());
+                for (Callable<Void> task : tasks) {
+                    FutureTask<Void> future = new FutureTask<>(task);
+                    future.run();
+                    futures.add(future);
+                }
+            }
+            else {
+                futures = pool.invokeAll(tasks);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while moving files.");
+        }
         
+        IOException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException | CancellationException e) {
+                throw new IllegalStateException(e);
+            }
+            catch (ExecutionException e) {
+                IOException cause = e.getCause() instanceof IOException 
+                    ? (IOException) e.getCause() : new IOException(e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                }
+                else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    
+    private Path getExistingPath() throws IOException {
+        if (path == null) {
+            throw new NoSuchFileException(fileName, null, "The file was not saved or was deleted.");
+        }
+        return path;
     }
     
-    void delete() {
+    /**
+     * Moves this file and its derivatives to target and updates the file 
+     * names. If the original cannot be moved, nothing is changed. Once it
+     * is moved, derivatives are moved on a best effort basis; one that 
+     * cannot be moved is logged, left where it was and no longer listed 
+     * for this file.
+     */
+    private void relocate(Path target) throws IOException {
         
+        Path source = path;
+        boolean keepSource = shared;
+        transfer(source, target, keepSource);
+        
+        path = target;
+        shared = false;
+        if (directory != null && target.startsWith(directory)) {
+            fileName = directory.relativize(target).toString().replace('\\', '/');
+        }
+        else {
+            fileName = target.toString();
+        }
+        
+        Set<String> sizes = new LinkedHashSet<>(derivativeSizes);
+        for (String size : derivativeSizes) {
+            Path derivative = DerivativeManager.derivativePath(directory, source, size);
+            if (java.nio.file.Files.exists(derivative)) {
+                Path moved = DerivativeManager.derivativePath(directory, target, size);
+                try {
+                    java.nio.file.Files.createDirectories(moved.getParent());
+                    transfer(derivative, moved, keepSource);
+                }
+                catch (IOException e) {
+                    Logger.getLogger(logger).log(Level.WARNING, 
+                        "Derivative " + derivative + " was not moved to " + moved, e);
+                    sizes.remove(size);
+                }
+            }
+        }
+        if (sizes.size() != derivativeSizes.size()) {
+            derivativeSizes = Collections.unmodifiableSet(sizes);
+        }
+    }
+    
+    /**
+     * Moves (or copies, if keepSource is true) a file without replacing an 
+     * existing target. A move is done with an atomic rename; across file 
+     * systems, the data is copied into a temporary file that's linked (or
+     * moved) into place once complete. Copies always copy the data, so 
+     * source and target never share their content.
+     * 
+     * An atomic rename replaces existing files on some platforms, so the 
+     * target is checked first; a file created by somebody else between the
+     * check and the rename may be replaced.
+     */
+    private static void transfer(Path source, Path target, boolean keepSource) throws IOException {
+        
+        if (keepSource) {
+            copy(source, target);
+            return;
+        }
+        
+        if (java.nio.file.Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        
+        try {
+            java.nio.file.Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+        // Different file system
+        catch (AtomicMoveNotSupportedException e) {
+            copy(source, target);
+            java.nio.file.Files.delete(source);
+        }
     }
+    
+    private static void copy(Path source, Path target) throws IOException {
         
+        Path temp = UploadManager.createTempFile(target.getParent(), ".move-");
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                for (long position = 0; position < size; ) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+            
+            try {
+                java.nio.file.Files.createLink(target, temp);
+            }
+            catch (FileAlreadyExistsException e) {
+                throw e;
+            }
+            catch (UnsupportedOperationException | IOException e) {
+                java.nio.file.Files.move(temp, target);
+            }
+        }
+        finally {
+            java.nio.file.Files.deleteIfExists(temp);
+        }
+    }
+    
 }
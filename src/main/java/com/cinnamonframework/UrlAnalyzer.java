@@ -30,7 +30,7 @@
  */
 package com.cinnamonframework;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 
@@ -40,10 +40,25 @@ import javax.servlet.http.HttpServletRequest;
  */
 class UrlAnalyzer {
     
+    private static final String DefaultMethodName = "index";
+    private static final String[] NoParameters = new String[0];
+    
     private String className;
-    private String methodName = "index"; // default method name
+    private String methodName = DefaultMethodName;
     private String[] parameters;
+    
+    // Reused by analyze, so a recycled analyzer does not allocate them 
+    // again.
+    private final List<String> list = new ArrayList<>();
+    private final StringBuilder sb = new StringBuilder();
 
+    /**
+     * Creates an analyzer to be filled later with analyze.
+     */
+    UrlAnalyzer() {
+        
+    }
+    
     /**
      * Example pathInfo:
      * 
@@ -53,6 +68,21 @@ class UrlAnalyzer {
      * @throws ServerException 
      */
     UrlAnalyzer(HttpServletRequest httpServletRequest, boolean useSlugs) throws ServerException {
+        analyze(httpServletRequest, useSlugs);
+    }
+    
+    /**
+     * Splits the request URL into class name, method name and parameters,
+     * replacing anything analyzed before.
+     * @param httpServletRequest
+     * @param useSlugs
+     * @throws ServerException 
+     */
+    final void analyze(HttpServletRequest httpServletRequest, boolean useSlugs) throws ServerException {
+        
+        className = null;
+        methodName = DefaultMethodName;
+        parameters = null;
         
         if (httpServletRequest == null) {
             throw new ServerException(
@@ -82,7 +112,7 @@ class UrlAnalyzer {
         }
         
         int i = 0;
-        List<String> list = new LinkedList<>();
+        list.clear();
         for (String s : array) {
             switch (i) {
                 case 1:
@@ -99,8 +129,8 @@ class UrlAnalyzer {
             i++;
         }
         
-        parameters = new String[list.size()];
-        parameters = list.toArray(parameters);
+        parameters = list.isEmpty() ? NoParameters : list.toArray(new String[list.size()]);
+        list.clear();
 
     }
     
@@ -118,13 +148,13 @@ class UrlAnalyzer {
      */
     private String parseClassName(String slug) {
         String[] parts = slug.split("-");
-        StringBuilder sb = new StringBuilder();
+        sb.setLength(0);
         for (String s : parts) {
             if (s.length() > 0) {
-                sb.append(s.substring(0, 1).toUpperCase());
+                sb.append(Character.toUpperCase(s.charAt(0)));
             }
             if (s.length() > 1) {
-                sb.append(s.substring(1));
+                sb.append(s, 1, s.length());
             }
         }
         
@@ -146,7 +176,7 @@ class UrlAnalyzer {
      */
     private String parseMethodName(String slug) {
         String[] parts = slug.split("-");
-        StringBuilder sb = new StringBuilder();
+        sb.setLength(0);
         int i = 0;
         for (String s : parts) {
             if (i++ == 0) {
@@ -154,10 +184,10 @@ class UrlAnalyzer {
             }
             else {
                 if (s.length() > 0) {
-                    sb.append(s.substring(0, 1).toUpperCase());
+                    sb.append(Character.toUpperCase(s.charAt(0)));
                 }
                 if (s.length() > 1) {
-                    sb.append(s.substring(1));
+                    sb.append(s, 1, s.length());
                 }
             }
         }
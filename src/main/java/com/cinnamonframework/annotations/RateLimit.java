@@ -0,0 +1,97 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Limits how often a client can call an action. Every client gets a 
+ * bucket of requests that refills continuously; requests that find the 
+ * bucket empty are answered with "429 Too Many Requests" and a Retry-After
+ * header, without running the action.
+ * 
+ * When placed on a controller class, it applies to every action that does
+ * not declare its own limit.
+ * 
+ * Example, 10 requests per minute per IP address:
+ * 
+ * @RateLimit(requests = 10, seconds = 60)
+ * public Result login(...) {...}
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Documented
+public @interface RateLimit {
+    
+    /**
+     * How clients are told apart.
+     */
+    enum Key {
+        /** 
+         * The client IP address: the connection address, or the address
+         * forwarded by a trusted proxy (see the trusted-proxies parameter).
+         */
+        Ip,
+        /** The session id, or the IP address if there's no session. */
+        Session,
+        /** 
+         * A key given by the controller, which must implement 
+         * com.cinnamonframework.RateLimitKeyProvider.
+         */
+        Custom
+    }
+    
+    /**
+     * The number of requests allowed per period, which is also the largest
+     * burst allowed.
+     * @return 
+     */
+    int requests();
+    
+    /**
+     * The period length in seconds. Default value: 1.
+     * @return 
+     */
+    int seconds() default 1;
+    
+    /**
+     * How clients are told apart. Default value: Key.Ip.
+     * @return 
+     */
+    Key key() default Key.Ip;
+    
+}
@@ -31,13 +31,9 @@
 package com.cinnamonframework.util;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.file.NoSuchFileException;
 
 /**
  *
@@ -83,12 +79,11 @@ public class Files {
     
     /**
      * Returns a file's md5 hash.
-     * Based on the work of Mkyong.
-     * @see http://www.mkyong.com/java/java-md5-hashing-example/
      * @param file
      * @return a file's md5 hash
      * @throws FileNotFoundException
      * @throws IOException 
+     * @see Hashing#hash(String, java.nio.file.Path)
      */
     public static String md5(File file) 
         throws FileNotFoundException, IOException {
@@ -96,30 +91,12 @@ public class Files {
         if (file == null) 
             throw new NullPointerException("file cannot be null.");
         
-        StringBuilder sb = new StringBuilder();
-        
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            FileInputStream fis = new FileInputStream(file);
-
-            byte[] dataBytes = new byte[1024];
-
-            int nread; 
-            while ((nread = fis.read(dataBytes)) != -1) {
-                md.update(dataBytes, 0, nread);
-            }
-            byte[] mdbytes = md.digest();
-
-            for (int i = 0; i < mdbytes.length; i++) {
-                sb.append(Integer.toString((mdbytes[i] & 0xff) + 0x100, 16).substring(1));
-            }
-            
+            return Hashing.hash(Hashing.Md5, file.toPath());
         }
-        catch (NoSuchAlgorithmException e) {
-            Logger.getLogger(Strings.class.getName()).log(Level.SEVERE, null, e);
+        catch (NoSuchFileException e) {
+            throw new FileNotFoundException(file.getPath());
         }
-        
-        return sb.toString();
     }
     
 }
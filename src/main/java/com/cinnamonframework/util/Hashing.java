@@ -0,0 +1,318 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Hashing functions for strings and files, meant to be called very often,
+ * like when building cache keys or fingerprinting assets.
+ * 
+ * MessageDigest instances are expensive to look up and not thread safe, so
+ * every thread keeps its own instance per algorithm. Files are read through
+ * channels: small files with a reusable per-thread buffer, large files 
+ * mapped into memory. Many files can be hashed in parallel with hashAll.
+ * 
+ * Hashes are returned as lower case hexadecimal strings.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+public class Hashing {
+    
+    public static final String Md5 = "MD5";
+    public static final String Sha1 = "SHA-1";
+    public static final String Sha256 = "SHA-256";
+    
+    /**
+     * Files of this size or larger are mapped into memory instead of read 
+     * through a buffer.
+     */
+    private static final long MapThreshold = 1024 * 1024;
+    
+    /**
+     * Bytes mapped into memory at a time.
+     */
+    private static final long MapSize = 64 * 1024 * 1024;
+    
+    private static final int BufferSize = 64 * 1024;
+    
+    private static final ThreadLocal<Map<String, MessageDigest>> digests = 
+        new ThreadLocal<Map<String, MessageDigest>>() {
+            @Override
+            protected Map<String, MessageDigest> initialValue() {
+                return new HashMap<>();
+            }
+        };
+    
+    private static final ThreadLocal<ByteBuffer> buffers = 
+        new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocateDirect(BufferSize);
+            }
+        };
+    
+    
+    /**
+     * @param s
+     * @return the MD5 hash of the UTF-8 representation of s.
+     */
+    public static String md5(CharSequence s) {
+        return hash(Md5, s);
+    }
+    
+    
+    /**
+     * @param s
+     * @return the SHA-256 hash of the UTF-8 representation of s.
+     */
+    public static String sha256(CharSequence s) {
+        return hash(Sha256, s);
+    }
+    
+    
+    /**
+     * @param algorithm a MessageDigest algorithm, like "SHA-256".
+     * @param s
+     * @return the hash of the UTF-8 representation of s.
+     * @throws IllegalArgumentException if the algorithm is not available.
+     */
+    public static String hash(String algorithm, CharSequence s) {
+        if (s == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        return hash(algorithm, s.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    
+    /**
+     * @param algorithm a MessageDigest algorithm, like "SHA-256".
+     * @param bytes
+     * @return the hash of the given bytes.
+     * @throws IllegalArgumentException if the algorithm is not available.
+     */
+    public static String hash(String algorithm, byte[] bytes) {
+        if (bytes == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        return Hex.encode(digest(algorithm).digest(bytes));
+    }
+    
+    
+    /**
+     * @param algorithm a MessageDigest algorithm, like "SHA-256".
+     * @param file
+     * @return the hash of the file content.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalArgumentException if the algorithm is not available.
+     */
+    public static String hash(String algorithm, Path file) throws IOException {
+        if (file == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        MessageDigest md = digest(algorithm);
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            
+            if (size >= MapThreshold) {
+                for (long position = 0; position < size; position += MapSize) {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 
+                        position, Math.min(MapSize, size - position));
+                    md.update(buffer);
+                }
+            }
+            else {
+                ByteBuffer buffer = buffers.get();
+                buffer.clear();
+                while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                    buffer.flip();
+                    md.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            md.reset();
+            throw e;
+        }
+        
+        return Hex.encode(md.digest());
+    }
+    
+    
+    /**
+     * Hashes many files in parallel, using every available core. Reading 
+     * files mostly waits for the disk when they are not cached, so up to 
+     * twice the cores are used. The threads are created for the call and 
+     * stopped before it returns.
+     * @param algorithm a MessageDigest algorithm, like "SHA-256".
+     * @param files
+     * @return every file and its hash, in the same order as files.
+     * @throws IOException if a file cannot be read.
+     * @throws IllegalArgumentException if the algorithm is not available.
+     */
+    public static Map<Path, String> hashAll(String algorithm, Collection<Path> files) throws IOException {
+        if (files == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        // Fail early, from the calling thread.
+        digest(algorithm);
+        
+        List<Path> list = new ArrayList<>(files);
+        String[] hashes = new String[list.size()];
+        
+        if (list.size() > 1) {
+            ForkJoinPool pool = new ForkJoinPool(
+                Math.min(list.size(), Runtime.getRuntime().availableProcessors() * 2));
+            try {
+                pool.invoke(new HashTask(algorithm, list, hashes, 0, list.size()));
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+        else if (list.size() == 1) {
+            hashes[0] = hash(algorithm, list.get(0));
+        }
+        
+        Map<Path, String> map = new LinkedHashMap<>();
+        for (int i = 0; i < hashes.length; i++) {
+            map.put(list.get(i), hashes[i]);
+        }
+        return map;
+    }
+    
+    
+    /**
+     * Returns this thread's digest for the algorithm, ready to use.
+     */
+    private static MessageDigest digest(String algorithm) {
+        if (algorithm == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        Map<String, MessageDigest> map = digests.get();
+        MessageDigest md = map.get(algorithm);
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            map.put(algorithm, md);
+        }
+        return md;
+    }
+    
+    
+    /**
+     * Hashes a range of files, splitting it in halves until every task has
+     * a single file.
+     */
+    private static final class HashTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final String algorithm;
+        private final List<Path> files;
+        private final String[] hashes;
+        private final int from;
+        private final int to;
+        
+        HashTask(String algorithm, List<Path> files, String[] hashes, int from, int to) {
+            this.algorithm = algorithm;
+            this.files = files;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        hashes[i] = hash(algorithm, files.get(i));
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return;
+            }
+            
+            int middle = (from + to) >>> 1;
+            invokeAll(new HashTask(algorithm, files, hashes, from, middle),
+                      new HashTask(algorithm, files, hashes, middle, to));
+        }
+        
+    }
+    
+    
+    /**
+     * Carries an IOException out of a fork-join task.
+     */
+    private static final class UncheckedIOException extends RuntimeException {
+        
+        private static final long serialVersionUID = 1L;
+        
+        UncheckedIOException(IOException cause) {
+            super(cause);
+        }
+        
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+        
+    }
+    
+}
@@ -0,0 +1,85 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework.util;
+
+/**
+ * Hexadecimal encoding and decoding.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+public class Hex {
+    
+    private static final char[] Digits = "0123456789abcdef".toCharArray();
+    
+    
+    /**
+     * Encodes bytes as a lower case hexadecimal string.
+     * @param bytes
+     * @return two characters per byte.
+     */
+    public static String encode(byte[] bytes) {
+        if (bytes == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0, j = 0; i < bytes.length; i++) {
+            chars[j++] = Digits[(bytes[i] >> 4) & 0xf];
+            chars[j++] = Digits[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+    
+    
+    /**
+     * Decodes a hexadecimal string, in upper or lower case.
+     * @param s
+     * @return the decoded bytes.
+     * @throws IllegalArgumentException if s is not a valid hexadecimal 
+     *         string.
+     */
+    public static byte[] decode(String s) {
+        if (s == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        if (s.length() % 2 != 0)
+            throw new IllegalArgumentException("Invalid hexadecimal string.");
+        
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(s.charAt(i * 2), 16);
+            int low = Character.digit(s.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0)
+                throw new IllegalArgumentException("Invalid hexadecimal string.");
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+    
+}
@@ -4,11 +4,10 @@
  */
 package com.cinnamonframework.util;
 
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
-import java.util.Arrays;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -71,44 +70,227 @@ import javax.crypto.spec.PBEKeySpec;
  */
 public class PasswordEncryptionUtil {
 
+	// PBKDF2 with SHA-1 as the hashing algorithm. Note that the NIST
+	// specifically names SHA-1 as an acceptable hashing algorithm for PBKDF2
+	static final String Algorithm = "PBKDF2WithHmacSHA1";
+
+	// SHA-1 generates 160 bit hashes, so that's what makes sense here
+	static final int DerivedKeyLength = 160;
+
+	// Pick an iteration count that works for you. The NIST recommends at
+	// least 1,000 iterations:
+	// http://csrc.nist.gov/publications/nistpubs/800-132/nist-sp800-132.pdf
+	// iOS 4.x reportedly uses 10,000:
+	// http://blog.crackpassword.com/2010/09/smartphone-forensics-cracking-blackberry-backup-passwords/
+	public static final int DefaultIterations = 20000;
+
+	// Looking up a SecretKeyFactory or seeding a SecureRandom is expensive,
+	// so every thread keeps its own instances; neither class is thread safe.
+	private static final ThreadLocal<SecretKeyFactory> factories = new ThreadLocal<>();
+	private static final ThreadLocal<SecureRandom> randoms = new ThreadLocal<>();
+
+	// Salt length for self-describing hashes
+	static final int SaltLength = 16;
+
+	private static final char Separator = ':';
+
+	/**
+	 * The result of checking a password against a self-describing hash.
+	 */
+	public enum Authentication {
+		/** The password does not match. */
+		Failed,
+		/** The password matches. */
+		Succeeded,
+		/**
+		 * The password matches, but the hash was created with weaker 
+		 * parameters than the current ones. The password should be hashed 
+		 * again and the new hash stored, while the clear-text password is 
+		 * still available.
+		 */
+		SucceededNeedsRehash;
+
+		public boolean isSucceeded() {
+			return this != Failed;
+		}
+	}
+
+	private final String algorithm;
+	private final int iterations;
+
+	/**
+	 * Creates an instance that hashes new passwords with the default 
+	 * algorithm and iterations.
+	 */
+	public PasswordEncryptionUtil() {
+		this(Algorithm, DefaultIterations);
+	}
+
+	/**
+	 * Creates an instance that hashes new passwords with the given 
+	 * parameters, like "PBKDF2WithHmacSHA1" and 20000. Self-describing 
+	 * hashes created with other parameters are still verified with their
+	 * own parameters.
+	 */
+	public PasswordEncryptionUtil(String algorithm, int iterations) {
+		if (algorithm == null)
+			throw new NullPointerException("Parameter cannot be null.");
+		if (iterations < 1)
+			throw new IllegalArgumentException("Iterations must be greater than zero.");
+
+		this.algorithm = algorithm;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * @return the algorithm used for new hashes
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @return the iterations used for new hashes
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Hashes a password with a new random salt and returns a 
+	 * self-describing hash that contains everything needed to verify it:
+	 * algorithm:iterations:salt:hash, where salt and hash are hexadecimal.
+	 * For example: PBKDF2WithHmacSHA1:20000:9f86d0...:2c26b4...
+	 */
+	public String hash(String password) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		byte[] salt = new byte[SaltLength];
+		random().nextBytes(salt);
+
+		byte[] hash = getEncryptedPassword(algorithm, password, salt, iterations, DerivedKeyLength);
+
+		return new StringBuilder(algorithm.length() + 16 + (salt.length + hash.length) * 2)
+			.append(algorithm).append(Separator)
+			.append(iterations).append(Separator)
+			.append(Hex.encode(salt)).append(Separator)
+			.append(Hex.encode(hash))
+			.toString();
+	}
+
+	/**
+	 * Checks a password against a self-describing hash created by hash(), 
+	 * using the hash's own algorithm, iterations and length. Also reports 
+	 * whether the hash should be replaced because it's weaker than the 
+	 * hashes created now.
+	 * @throws IllegalArgumentException if the stored hash is not valid.
+	 */
+	public Authentication authenticate(String attemptedPassword, String storedHash)
+		throws NoSuchAlgorithmException, InvalidKeySpecException {
+
+		String[] parts = storedHash.split(String.valueOf(Separator));
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Invalid password hash.");
+		}
+
+		String storedAlgorithm = parts[0];
+		int storedIterations;
+		byte[] salt;
+		byte[] hash;
+		try {
+			storedIterations = Integer.parseInt(parts[1]);
+			salt = Hex.decode(parts[2]);
+			hash = Hex.decode(parts[3]);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid password hash.", e);
+		}
+
+		byte[] attempted = getEncryptedPassword(storedAlgorithm, attemptedPassword, 
+			salt, storedIterations, hash.length * 8);
+		if (!MessageDigest.isEqual(hash, attempted)) {
+			return Authentication.Failed;
+		}
+
+		boolean weaker = !storedAlgorithm.equals(algorithm)
+			|| storedIterations < iterations
+			|| salt.length < SaltLength
+			|| hash.length * 8 < DerivedKeyLength;
+		return weaker ? Authentication.SucceededNeedsRehash : Authentication.Succeeded;
+	}
+
 	public boolean authenticate(String attemptedPassword, byte[] encryptedPassword, byte[] salt)
+		throws NoSuchAlgorithmException, InvalidKeySpecException {
+		return authenticate(attemptedPassword, encryptedPassword, salt, DefaultIterations);
+	}
+
+	/**
+	 * Authenticates a password that was encrypted with the given number of
+	 * iterations.
+	 */
+	public boolean authenticate(String attemptedPassword, byte[] encryptedPassword, byte[] salt, int iterations)
 		throws NoSuchAlgorithmException, InvalidKeySpecException {
 		// Encrypt the clear-text password using the same salt that was used to
 		// encrypt the original password
-		byte[] encryptedAttemptedPassword = getEncryptedPassword(attemptedPassword, salt);
+		byte[] encryptedAttemptedPassword = getEncryptedPassword(attemptedPassword, salt, iterations);
 
 		// Authentication succeeds if encrypted password that the user entered
-		// is equal to the stored hash
-		return Arrays.equals(encryptedPassword, encryptedAttemptedPassword);
+		// is equal to the stored hash. The comparison takes the same time
+		// no matter where the hashes differ.
+		return MessageDigest.isEqual(encryptedPassword, encryptedAttemptedPassword);
 	}
 
 	public byte[] getEncryptedPassword(String password, byte[] salt)
 		throws NoSuchAlgorithmException, InvalidKeySpecException {
-		
-		// PBKDF2 with SHA-1 as the hashing algorithm. Note that the NIST
-		// specifically names SHA-1 as an acceptable hashing algorithm for PBKDF2
-		String algorithm = "PBKDF2WithHmacSHA1";
-		
-		// SHA-1 generates 160 bit hashes, so that's what makes sense here
-		int derivedKeyLength = 160;
-		
-		// Pick an iteration count that works for you. The NIST recommends at
-		// least 1,000 iterations:
-		// http://csrc.nist.gov/publications/nistpubs/800-132/nist-sp800-132.pdf
-		// iOS 4.x reportedly uses 10,000:
-		// http://blog.crackpassword.com/2010/09/smartphone-forensics-cracking-blackberry-backup-passwords/
-		int iterations = 20000;
-
-		KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, derivedKeyLength);
-
-		SecretKeyFactory f = SecretKeyFactory.getInstance(algorithm);
-
-		return f.generateSecret(spec).getEncoded();
+		return getEncryptedPassword(password, salt, DefaultIterations);
+	}
+
+	/**
+	 * Encrypts a password using the given number of iterations. The 
+	 * iterations must be stored along with the encrypted password.
+	 */
+	public byte[] getEncryptedPassword(String password, byte[] salt, int iterations)
+		throws NoSuchAlgorithmException, InvalidKeySpecException {
+		return getEncryptedPassword(Algorithm, password, salt, iterations, DerivedKeyLength);
+	}
+
+	private static byte[] getEncryptedPassword(String algorithm, String password, byte[] salt, 
+			int iterations, int derivedKeyLength)
+		throws NoSuchAlgorithmException, InvalidKeySpecException {
+
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, derivedKeyLength);
+
+		try {
+			return factory(algorithm).generateSecret(spec).getEncoded();
+		}
+		finally {
+			spec.clearPassword();
+		}
+	}
+
+	/**
+	 * Returns this thread's factory for the algorithm; threads usually 
+	 * need only one algorithm, so only the last one used is kept.
+	 */
+	private static SecretKeyFactory factory(String algorithm) throws NoSuchAlgorithmException {
+		SecretKeyFactory f = factories.get();
+		if (f == null || !f.getAlgorithm().equals(algorithm)) {
+			f = SecretKeyFactory.getInstance(algorithm);
+			factories.set(f);
+		}
+		return f;
+	}
+
+	private static SecureRandom random() throws NoSuchAlgorithmException {
+		SecureRandom random = randoms.get();
+		if (random == null) {
+			random = SecureRandom.getInstance("SHA1PRNG");
+			randoms.set(random);
+		}
+		return random;
 	}
 
 	public byte[] generateSalt() throws NoSuchAlgorithmException {
 		// VERY important to use SecureRandom instead of just Random
-		SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+		SecureRandom random = random();
 
 		// Generate an 8 byte (64 bit) salt as recommended by RSA PKCS5
 		byte[] salt = new byte[8];
@@ -0,0 +1,316 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework.util;
+
+import com.cinnamonframework.util.PasswordEncryptionUtil.Authentication;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs password hashing on a dedicated, bounded set of threads.
+ * 
+ * Hashing a password is deliberately slow. When it runs on request threads,
+ * a login spike takes every container thread and unrelated pages stop 
+ * responding. This service limits how many passwords are hashed at the same
+ * time and how many can wait; when the queue is full, new requests fail 
+ * immediately with a RejectedExecutionException, which applications should
+ * answer with a "503 Service Unavailable" or a "try again" message.
+ * 
+ * The number of iterations can be calibrated when the service starts, so 
+ * every hash takes about the same time on any hardware. Self-describing 
+ * hashes keep their own parameters, so hashes created on older hardware 
+ * are still verified, and reported as in need of a rehash.
+ * 
+ * Example:
+ * 
+ * PasswordHashingService service = PasswordHashingService.calibrated(250);
+ * String hash = service.hash(password); // store it
+ * ...
+ * Authentication result = service.authenticate(attempt, hash);
+ * if (result == Authentication.SucceededNeedsRehash) {
+ *     // store service.hash(attempt)
+ * }
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+public class PasswordHashingService {
+    
+    /**
+     * Passwords that can wait per hashing thread.
+     */
+    public static final int DefaultQueuedPerThread = 16;
+    
+    /**
+     * Calibration never goes below the default iterations, so stored 
+     * hashes never get weaker on slow hardware.
+     */
+    public static final int MinIterations = PasswordEncryptionUtil.DefaultIterations;
+    public static final int MaxIterations = 10000000;
+    
+    private final PasswordEncryptionUtil util;
+    private final ThreadPoolExecutor executor;
+    private final int iterations;
+    
+    
+    /**
+     * Creates a service that uses half of the available cores and the
+     * default iterations.
+     */
+    public PasswordHashingService() {
+        this(defaultThreads(), defaultThreads() * DefaultQueuedPerThread, PasswordEncryptionUtil.DefaultIterations);
+    }
+    
+    
+    /**
+     * @param threads the number of passwords hashed at the same time.
+     * @param queueCapacity the number of passwords that can wait.
+     * @param iterations the iterations used for new hashes.
+     */
+    public PasswordHashingService(int threads, int queueCapacity, int iterations) {
+        if (threads < 1 || queueCapacity < 0 || iterations < 1) 
+            throw new IllegalArgumentException("Invalid threads, queue capacity or iterations.");
+        
+        this.iterations = iterations;
+        this.util = new PasswordEncryptionUtil(PasswordEncryptionUtil.Algorithm, iterations);
+        
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            queueCapacity > 0 
+                ? new ArrayBlockingQueue<Runnable>(queueCapacity) 
+                : new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "cinnamon-password-hashing-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+    
+    
+    /**
+     * Creates a service that uses half of the available cores and picks the
+     * iterations so a hash takes about the given time on this machine.
+     * @param targetMillis the desired time per hash, in milliseconds.
+     * @return a calibrated service.
+     */
+    public static PasswordHashingService calibrated(long targetMillis) {
+        return new PasswordHashingService(defaultThreads(), 
+            defaultThreads() * DefaultQueuedPerThread, calibrate(targetMillis));
+    }
+    
+    
+    /**
+     * Measures this machine and returns the iterations that make a hash take
+     * about the given time, between MinIterations and MaxIterations. Takes 
+     * a few times targetMillis to run.
+     * @param targetMillis the desired time per hash, in milliseconds.
+     * @return the number of iterations.
+     */
+    public static int calibrate(long targetMillis) {
+        
+        PasswordEncryptionUtil util = new PasswordEncryptionUtil();
+        int sample = MinIterations;
+        long[] times = new long[5];
+        
+        try {
+            byte[] salt = util.generateSalt();
+            // The first runs include class loading and JIT compilation.
+            for (int i = 0; i < 3; i++) {
+                util.getEncryptedPassword("calibration", salt, sample);
+            }
+            for (int i = 0; i < times.length; i++) {
+                long start = System.nanoTime();
+                util.getEncryptedPassword("calibration", salt, sample);
+                times[i] = System.nanoTime() - start;
+            }
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        
+        // The time grows linearly with the iterations; the median ignores 
+        // runs interrupted by the garbage collector or other threads.
+        Arrays.sort(times);
+        double nanosPerIteration = (double) times[times.length / 2] / sample;
+        long iterations = (long) (TimeUnit.MILLISECONDS.toNanos(targetMillis) / nanosPerIteration);
+        
+        return (int) Math.max(MinIterations, Math.min(MaxIterations, iterations));
+    }
+    
+    
+    /**
+     * @return the iterations used for new hashes.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+    
+    
+    /**
+     * @return a new random salt.
+     * @throws GeneralSecurityException if the random generator is not 
+     *         available.
+     */
+    public byte[] generateSalt() throws GeneralSecurityException {
+        return util.generateSalt();
+    }
+    
+    
+    /**
+     * Hashes a password into a self-describing hash, waiting for the 
+     * result. See PasswordEncryptionUtil.hash.
+     * @throws RejectedExecutionException if too many passwords are waiting.
+     * @throws GeneralSecurityException if the password cannot be hashed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public String hash(final String password) throws GeneralSecurityException, InterruptedException {
+        return get(executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws GeneralSecurityException {
+                return util.hash(password);
+            }
+        }));
+    }
+    
+    
+    /**
+     * Checks a password against a self-describing hash, waiting for the 
+     * result. The hash is verified with its own parameters and reported as
+     * in need of a rehash if it's weaker than the hashes created by this 
+     * service.
+     * @throws RejectedExecutionException if too many passwords are waiting.
+     * @throws GeneralSecurityException if the password cannot be hashed.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws IllegalArgumentException if the stored hash is not valid.
+     */
+    public Authentication authenticate(final String attemptedPassword, final String storedHash) 
+            throws GeneralSecurityException, InterruptedException {
+        return get(executor.submit(new Callable<Authentication>() {
+            @Override
+            public Authentication call() throws GeneralSecurityException {
+                return util.authenticate(attemptedPassword, storedHash);
+            }
+        }));
+    }
+    
+    
+    /**
+     * Hashes a password with the service iterations, waiting for the 
+     * result.
+     * @throws RejectedExecutionException if too many passwords are waiting.
+     * @throws GeneralSecurityException if the password cannot be hashed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public byte[] getEncryptedPassword(String password, byte[] salt) 
+            throws GeneralSecurityException, InterruptedException {
+        return get(submit(password, salt, iterations));
+    }
+    
+    
+    /**
+     * Checks a password against a hash created with the given iterations,
+     * waiting for the result.
+     * @throws RejectedExecutionException if too many passwords are waiting.
+     * @throws GeneralSecurityException if the password cannot be hashed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean authenticate(final String attemptedPassword, final byte[] encryptedPassword, 
+            final byte[] salt, final int iterations) throws GeneralSecurityException, InterruptedException {
+        return get(executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws GeneralSecurityException {
+                return util.authenticate(attemptedPassword, encryptedPassword, salt, iterations);
+            }
+        }));
+    }
+    
+    
+    /**
+     * Hashes a password without waiting for the result.
+     * @throws RejectedExecutionException if too many passwords are waiting.
+     */
+    public Future<byte[]> submit(final String password, final byte[] salt, final int iterations) {
+        return executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws GeneralSecurityException {
+                return util.getEncryptedPassword(password, salt, iterations);
+            }
+        });
+    }
+    
+    
+    /**
+     * Stops the hashing threads. Waiting passwords are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    
+    private static <T> T get(Future<T> future) throws GeneralSecurityException, InterruptedException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    
+    private static int defaultThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+    
+}
@@ -30,13 +30,12 @@
  */
 package com.cinnamonframework.util;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.Normalizer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Pattern;
 
 /**
@@ -187,41 +186,136 @@ public class Strings {
         if (s == null)
             throw new NullPointerException("Parameter cannot be null.");
 
+        String slug = toAsciiSlug(s);
+        if (slug != null)
+            return slug;
+        
         String noWhiteSpace = WHITESPACE.matcher(s).replaceAll("-");
         String normalized = Normalizer.normalize(noWhiteSpace, Normalizer.Form.NFD);
-        String slug = NONLATIN.matcher(normalized).replaceAll("");
+        slug = NONLATIN.matcher(normalized).replaceAll("");
 
         return slug.toLowerCase(Locale.ENGLISH);
     }
     
     
     /**
-     * Returns a string's md5 hash.
-     * Based on the work of Mkyong.
-     * @see http://www.mkyong.com/java/java-md5-hashing-example/
-     * @return a md5 hash of the given string.
+     * Converts every string in the list to its slug representation. Lists
+     * of more than ParallelThreshold strings are processed in parallel, by
+     * threads created for the call and stopped before it returns; shorter
+     * lists take less time than starting the threads.
+     *
+     * @param list the strings to process
+     * @return the slug representations, in the same order as list.
+     * @see #toSlug(String) 
      */
-    public static String md5(String s) {
-        if (s == null)
+    public static List<String> toSlugs(List<String> list) {
+        if (list == null)
             throw new NullPointerException("Parameter cannot be null.");
         
-        MessageDigest md;
-        StringBuilder sb = new StringBuilder();
+        String[] source = list.toArray(new String[list.size()]);
+        String[] slugs = new String[source.length];
         
-        try {
-            md = MessageDigest.getInstance("MD5");
-            md.update(s.getBytes());
+        if (source.length <= ParallelThreshold) {
+            for (int i = 0; i < source.length; i++) {
+                slugs[i] = toSlug(source[i]);
+            }
+        }
+        else {
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            try {
+                pool.invoke(new SlugTask(source, slugs, 0, source.length));
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
         
-            byte byteData[] = md.digest();
-            for (int i = 0; i < byteData.length; i++) {
-                sb.append(Integer.toString((byteData[i] & 0xff) + 0x100, 16).substring(1));
+        return Arrays.asList(slugs);
+    }
+    
+    
+    /**
+     * Does the same as toSlug in a single scan when s is plain ASCII, where
+     * normalization changes nothing. 
+     * @return the slug, or null if s has non-ASCII characters.
+     */
+    private static String toAsciiSlug(String s) {
+        int length = s.length();
+        char[] chars = new char[length];
+        int count = 0;
+        
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            
+            if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_' || c == '-') {
+                chars[count++] = c;
+            }
+            else if (c >= 'A' && c <= 'Z') {
+                chars[count++] = (char) (c + ('a' - 'A'));
+            }
+            else if (c == ' ' || c >= '\t' && c <= '\r') {
+                chars[count++] = '-';
+            }
+            else if (c >= 0x80) {
+                return null;
+            }
+        }
+        
+        return new String(chars, 0, count);
+    }
+    
+    
+    private static final int SlugsPerTask = 1024;
+    private static final int ParallelThreshold = 64 * 1024;
+    
+    /**
+     * Slugifies a range of strings, splitting it in halves until every task
+     * has at most SlugsPerTask strings.
+     */
+    private static final class SlugTask extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final String[] source;
+        private final String[] slugs;
+        private final int from;
+        private final int to;
+        
+        SlugTask(String[] source, String[] slugs, int from, int to) {
+            this.source = source;
+            this.slugs = slugs;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= SlugsPerTask) {
+                for (int i = from; i < to; i++) {
+                    slugs[i] = toSlug(source[i]);
+                }
+                return;
             }
             
-        } catch (NoSuchAlgorithmException e) {
-            Logger.getLogger(Strings.class.getName()).log(Level.SEVERE, e.getMessage(), e);
+            int middle = (from + to) >>> 1;
+            invokeAll(new SlugTask(source, slugs, from, middle),
+                      new SlugTask(source, slugs, middle, to));
         }
         
-        return sb.toString();
+    }
+    
+    
+    /**
+     * Returns a string's md5 hash.
+     * @return a md5 hash of the given string.
+     * @see Hashing#md5(CharSequence)
+     */
+    public static String md5(String s) {
+        if (s == null)
+            throw new NullPointerException("Parameter cannot be null.");
+        
+        // Keeps the platform encoding, so existing hashes do not change.
+        return Hashing.hash(Hashing.Md5, s.getBytes());
     }
 
 }
@@ -0,0 +1,97 @@
+/* 
+ * Cinnamon Framework
+ * Copyright (c) 2014, Andres Jaimes (http://andres.jaimes.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ * * Neither the name of Cinnamon Framework nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cinnamonframework;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Measures the bytes allocated per request by the framework objects of a
+ * request, with recycling off and on. It's not a test; run it by hand 
+ * after building:
+ * 
+ * <pre>
+ *     mvn test-compile
+ *     java -cp target/classes:target/test-classes com.cinnamonframework.RequestContextPoolBenchmark
+ * </pre>
+ * 
+ * It needs a JVM with com.sun.management.ThreadMXBean, like HotSpot.
+ * 
+ * @author Andres Jaimes (http://andres.jaimes.net)
+ */
+public class RequestContextPoolBenchmark {
+    
+    private static final int Warmup = 200_000;
+    private static final int Requests = 1_000_000;
+    
+    
+    public static void main(String[] args) {
+        
+        com.sun.management.ThreadMXBean threads = 
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        MessageManager messageManager = new MessageManager(null, null);
+        
+        for (boolean recycle : new boolean[] { false, true }) {
+            RequestContextPool pool = new RequestContextPool(messageManager, recycle, false);
+            run(pool, Warmup);
+            
+            long thread = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(thread);
+            run(pool, Requests);
+            long after = threads.getThreadAllocatedBytes(thread);
+            pool.shutdown();
+            
+            System.out.printf("recycle=%s: %d bytes per request%n", 
+                recycle, (after - before) / Requests);
+        }
+    }
+    
+    
+    /**
+     * Goes through the framework side of a request: acquires a context, 
+     * fills it the way RequestManager and an action would, and gives it 
+     * back.
+     */
+    private static void run(RequestContextPool pool, int requests) {
+        
+        for (int i = 0; i < requests; i++) {
+            RequestContext context = pool.acquire();
+            Request request = context.request;
+            request.setRemoteIp("127.0.0.1");
+            request.setLocale(Locale.ENGLISH);
+            request.setRequestMethod(RequestMethod.Get);
+            context.messages.setRequest(request);
+            context.messages.addLocalizedMessage("name", "Name is required.");
+            pool.release(context);
+        }
+    }
+    
+}